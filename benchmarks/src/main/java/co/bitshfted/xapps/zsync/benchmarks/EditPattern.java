@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Pairs of seed and target files derived from the guava jars bundled with the zsyncer tests, from a real version
+ * upgrade to synthetic edits of a single version. The jars are looked up in the directory given by the
+ * <code>zsync.benchmark.guava</code> system property, which defaults to the test resources of the parent project.
+ */
+public enum EditPattern {
+
+  /** guava 17.0 to 18.0 */
+  UPGRADE {
+    @Override
+    byte[] seed() throws IOException {
+      return guava("17.0");
+    }
+
+    @Override
+    byte[] target() throws IOException {
+      return guava("18.0");
+    }
+  },
+
+  /** guava 15.0 to 18.0, sharing fewer blocks */
+  MAJOR_UPGRADE {
+    @Override
+    byte[] seed() throws IOException {
+      return guava("15.0");
+    }
+
+    @Override
+    byte[] target() throws IOException {
+      return guava("18.0");
+    }
+  },
+
+  /** guava 18.0 with one byte changed every 256KB, i.e. many small, far apart ranges */
+  SCATTERED {
+    @Override
+    byte[] seed() throws IOException {
+      return guava("18.0");
+    }
+
+    @Override
+    byte[] target() throws IOException {
+      final byte[] target = guava("18.0");
+      final Random random = new Random(0);
+      for (int i = 0; i < target.length; i += 256 * 1024) {
+        target[random.nextInt(Math.min(256 * 1024, target.length - i)) + i] ^= 1;
+      }
+      return target;
+    }
+  },
+
+  /** guava 18.0 with 1KB inserted in the middle, shifting the second half */
+  INSERTION {
+    @Override
+    byte[] seed() throws IOException {
+      return guava("18.0");
+    }
+
+    @Override
+    byte[] target() throws IOException {
+      final byte[] seed = guava("18.0");
+      final byte[] target = new byte[seed.length + 1024];
+      final int middle = seed.length / 2;
+      final byte[] inserted = new byte[1024];
+      new Random(0).nextBytes(inserted);
+      System.arraycopy(seed, 0, target, 0, middle);
+      System.arraycopy(inserted, 0, target, middle, inserted.length);
+      System.arraycopy(seed, middle, target, middle + 1024, seed.length - middle);
+      return target;
+    }
+  },
+
+  /** guava 18.0 without a seed, i.e. a full download */
+  NO_SEED {
+    @Override
+    byte[] seed() {
+      return null;
+    }
+
+    @Override
+    byte[] target() throws IOException {
+      return guava("18.0");
+    }
+  };
+
+  /**
+   * Returns the content of the seed file, or null if there is none
+   */
+  abstract byte[] seed() throws IOException;
+
+  abstract byte[] target() throws IOException;
+
+  private static byte[] guava(String version) throws IOException {
+    final Path directory = Paths.get(System.getProperty("zsync.benchmark.guava",
+        "../src/test/resources/.m2/repository/com/google/guava/guava"));
+    return Files.readAllBytes(directory.resolve(version).resolve("guava-" + version + ".jar"));
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.benchmarks;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * A local http server for the files in a directory that answers range requests over a simulated link. Every request
+ * is delayed by one round trip plus a fixed per-request overhead before the response is sent, and all response bodies
+ * share the given bandwidth, as they would over a single link. Servers that do not support multiple ranges per
+ * request are simulated by answering such requests with the full file.
+ */
+public class RangeServer implements AutoCloseable {
+
+  private static final String BOUNDARY = "zsync-benchmark-boundary";
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final Path directory;
+  private final long rttMillis;
+  private final long overheadMillis;
+  private final long bytesPerSecond;
+  private final boolean multiRange;
+  private final Server server;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private long nextSendNanos;
+
+  /**
+   * @param directory directory of the files to serve
+   * @param rttMillis round trip time added to every request
+   * @param overheadMillis time the server spends on every request in addition
+   * @param bytesPerSecond bandwidth shared by all responses, or 0 for unlimited
+   * @param multiRange whether requests for multiple ranges are answered with multipart responses
+   */
+  public RangeServer(Path directory, long rttMillis, long overheadMillis, long bytesPerSecond, boolean multiRange)
+      throws Exception {
+    this.directory = directory;
+    this.rttMillis = rttMillis;
+    this.overheadMillis = overheadMillis;
+    this.bytesPerSecond = bytesPerSecond;
+    this.multiRange = multiRange;
+    this.server = new Server(0);
+    this.server.setHandler(new AbstractHandler() {
+      @Override
+      public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
+        baseRequest.setHandled(true);
+        RangeServer.this.serve(target, request, response);
+      }
+    });
+    this.server.start();
+  }
+
+  public String getUrlBase() {
+    return "http://localhost:" + ((ServerConnector) this.server.getConnectors()[0]).getLocalPort() + "/";
+  }
+
+  /**
+   * Returns the number of requests served since the last call and resets it
+   */
+  public long takeRequests() {
+    return this.requests.getAndSet(0);
+  }
+
+  /**
+   * Returns the number of response body bytes sent since the last call and resets it
+   */
+  public long takeBytes() {
+    return this.bytes.getAndSet(0);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.server.stop();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void serve(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+    this.requests.incrementAndGet();
+    sleep(this.rttMillis + this.overheadMillis);
+    final Path file = this.directory.resolve(target.substring(1));
+    if (!Files.isRegularFile(file)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    final long length = Files.size(file);
+    final List<long[]> ranges = parseRanges(request.getHeader("Range"), length);
+    try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+      final OutputStream out = response.getOutputStream();
+      if (ranges.isEmpty() || (ranges.size() > 1 && !this.multiRange)) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentLengthLong(length);
+        this.send(in, 0, length, out);
+      } else if (ranges.size() == 1) {
+        final long[] range = ranges.get(0);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", contentRange(range, length));
+        response.setContentLengthLong(range[1] - range[0] + 1);
+        this.send(in, range[0], range[1] + 1, out);
+      } else {
+        final List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        final byte[] end = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(ISO_8859_1);
+        long contentLength = end.length;
+        for (long[] range : ranges) {
+          final byte[] partHeader = ("\r\n--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\n"
+              + "Content-Range: " + contentRange(range, length) + "\r\n\r\n").getBytes(ISO_8859_1);
+          partHeaders.add(partHeader);
+          contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + BOUNDARY);
+        response.setContentLengthLong(contentLength);
+        for (int i = 0; i < ranges.size(); i++) {
+          out.write(partHeaders.get(i));
+          this.send(in, ranges.get(i)[0], ranges.get(i)[1] + 1, out);
+        }
+        out.write(end);
+      }
+    }
+  }
+
+  private void send(RandomAccessFile in, long from, long to, OutputStream out) throws IOException {
+    final byte[] buffer = new byte[CHUNK_SIZE];
+    in.seek(from);
+    for (long position = from; position < to;) {
+      final int n = (int) Math.min(buffer.length, to - position);
+      in.readFully(buffer, 0, n);
+      this.throttle(n);
+      out.write(buffer, 0, n);
+      position += n;
+      this.bytes.addAndGet(n);
+    }
+  }
+
+  private void throttle(int n) {
+    if (this.bytesPerSecond == 0) {
+      return;
+    }
+    final long waitNanos;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      this.nextSendNanos = Math.max(this.nextSendNanos, now) + TimeUnit.SECONDS.toNanos(n) / this.bytesPerSecond;
+      waitNanos = this.nextSendNanos - now;
+    }
+    sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+  }
+
+  private static List<long[]> parseRanges(String header, long length) {
+    final List<long[]> ranges = new ArrayList<>();
+    if (header == null || !header.startsWith("bytes=")) {
+      return ranges;
+    }
+    for (String range : header.substring("bytes=".length()).split(",")) {
+      final int dash = range.indexOf('-');
+      final long first = Long.parseLong(range.substring(0, dash).trim());
+      final long last = Math.min(length - 1, Long.parseLong(range.substring(dash + 1).trim()));
+      ranges.add(new long[] { first, last });
+    }
+    return ranges;
+  }
+
+  private static String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
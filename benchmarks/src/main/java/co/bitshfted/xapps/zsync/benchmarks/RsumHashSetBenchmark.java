@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.benchmarks;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.bitshfted.xapps.zsync.internal.util.IntHashSet;
+import co.bitshfted.xapps.zsync.internal.util.LongHashSet;
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+/**
+ * Compares the rolling checksum lookups performed by the block matchers for every byte of input: boxed
+ * {@link HashSet} lookups as used previously against the primitive {@link IntHashSet} and {@link LongHashSet}. Probes
+ * are random, so nearly all of them miss, as they do when scanning changed regions of the input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RsumHashSetBenchmark {
+
+  private static final int PROBES = 1 << 16;
+
+  /**
+   * Number of blocks in the control file, e.g. 1024 blocks for a 2MB file at 2KB block size
+   */
+  @Param({"1024", "65536", "1048576"})
+  public int blocks;
+
+  private Set<Integer> boxedIntSet;
+  private IntHashSet intSet;
+  private Set<Long> boxedLongSet;
+  private LongHashSet longSet;
+  private int[] intProbes;
+  private long[] longProbes;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(0);
+    final int[] rsums = new int[this.blocks];
+    for (int i = 0; i < rsums.length; i++) {
+      rsums[i] = random.nextInt();
+    }
+
+    this.boxedIntSet = new HashSet<>();
+    this.intSet = new IntHashSet(rsums.length);
+    this.boxedLongSet = new HashSet<>();
+    this.longSet = new LongHashSet(rsums.length);
+    for (int i = 0; i < rsums.length; i++) {
+      this.boxedIntSet.add(rsums[i]);
+      this.intSet.add(rsums[i]);
+      if (i > 0) {
+        final long r = ZsyncUtil.toLong(rsums[i - 1], rsums[i]);
+        this.boxedLongSet.add(r);
+        this.longSet.add(r);
+      }
+    }
+
+    this.intProbes = new int[PROBES];
+    this.longProbes = new long[PROBES];
+    for (int i = 0; i < PROBES; i++) {
+      this.intProbes[i] = random.nextInt();
+      this.longProbes[i] = random.nextLong();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PROBES)
+  public int boxedIntSet() {
+    int hits = 0;
+    for (int probe : this.intProbes) {
+      if (this.boxedIntSet.contains(probe)) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PROBES)
+  public int intHashSet() {
+    int hits = 0;
+    for (int probe : this.intProbes) {
+      if (this.intSet.contains(probe)) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PROBES)
+  public int boxedLongSet() {
+    int hits = 0;
+    for (long probe : this.longProbes) {
+      if (this.boxedLongSet.contains(probe)) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PROBES)
+  public int longHashSet() {
+    int hits = 0;
+    for (long probe : this.longProbes) {
+      if (this.longSet.contains(probe)) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic input files derived from a random target file, covering the cases the block matchers distinguish.
+ */
+public enum SyntheticInput {
+
+  /**
+   * Same content as the target, every block matches at aligned offsets
+   */
+  IDENTICAL {
+    @Override
+    public byte[] derive(byte[] target) {
+      return target.clone();
+    }
+  },
+  /**
+   * Unrelated content, no block matches and the rolling checksum is updated for every byte
+   */
+  DIFFERENT {
+    @Override
+    public byte[] derive(byte[] target) {
+      return random(target.length, 1);
+    }
+  },
+  /**
+   * Target content preceded by a few bytes, every block matches at unaligned offsets
+   */
+  SHIFTED {
+    @Override
+    public byte[] derive(byte[] target) {
+      final byte[] input = new byte[target.length + SHIFT];
+      System.arraycopy(random(SHIFT, 2), 0, input, 0, SHIFT);
+      System.arraycopy(target, 0, input, SHIFT, target.length);
+      return input;
+    }
+  },
+  /**
+   * Target content with a single byte changed every {@value #EDIT_DISTANCE} bytes
+   */
+  SPARSE {
+    @Override
+    public byte[] derive(byte[] target) {
+      final byte[] input = target.clone();
+      for (int i = EDIT_DISTANCE / 2; i < input.length; i += EDIT_DISTANCE) {
+        input[i] = (byte) ~input[i];
+      }
+      return input;
+    }
+  };
+
+  /**
+   * Length of the target file
+   */
+  public static final int LENGTH = 4 << 20;
+
+  static final int SHIFT = 17;
+  static final int EDIT_DISTANCE = 64 << 10;
+
+  public static byte[] target() {
+    return random(LENGTH, 0);
+  }
+
+  public abstract byte[] derive(byte[] target);
+
+  static byte[] random(int length, long seed) {
+    final byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.bitshfted.xapps.zsync.Zsync;
+import co.bitshfted.xapps.zsync.ZsyncException;
+import co.bitshfted.xapps.zsync.ZsyncMake;
+
+/**
+ * Measures the wall time of an end-to-end zsync run against a {@link RangeServer} that simulates the given link and
+ * server, along with the number of requests issued and the bytes transferred, for each {@link EditPattern}. The control
+ * file is read locally, so only requests for the target file are counted.
+ * <p>
+ * The defaults model a nearby server on a fast link; pass e.g. <code>-p rttMillis=100 -p megabitsPerSecond=10</code>
+ * to simulate a slow one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ZsyncBenchmark {
+
+  @Param({"UPGRADE", "MAJOR_UPGRADE", "SCATTERED", "INSERTION", "NO_SEED"})
+  public EditPattern pattern;
+
+  @Param({"20"})
+  public long rttMillis;
+
+  @Param({"1"})
+  public long overheadMillis;
+
+  /** bandwidth of the simulated link, 0 for unlimited */
+  @Param({"50"})
+  public long megabitsPerSecond;
+
+  @Param({"true", "false"})
+  public boolean multiRange;
+
+  private Path directory;
+  private Path zsyncFile;
+  private Path seedFile;
+  private Path outputFile;
+  private RangeServer server;
+  private Zsync.Options options;
+
+  @Setup
+  public void setUp() throws Exception {
+    this.directory = Files.createTempDirectory("zsync-benchmark");
+    final Path root = Files.createDirectory(this.directory.resolve("root"));
+    final Path targetFile = Files.write(root.resolve("target.jar"), this.pattern.target());
+    this.zsyncFile = new ZsyncMake().writeToFile(targetFile, new ZsyncMake.Options()).getOutputFile();
+    final byte[] seed = this.pattern.seed();
+    this.seedFile = seed == null ? null : Files.write(this.directory.resolve("seed.jar"), seed);
+    this.outputFile = this.directory.resolve("output.jar");
+
+    this.server = new RangeServer(root, this.rttMillis, this.overheadMillis,
+        this.megabitsPerSecond * 1_000_000 / 8, this.multiRange);
+    this.options = new Zsync.Options().setOutputFile(this.outputFile).setResumeDownloads(false)
+        .setZsyncFileSource(URI.create(this.server.getUrlBase() + "target.jar.zsync"));
+    if (this.seedFile != null) {
+      this.options.addInputFile(this.seedFile);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void deleteOutput() throws IOException {
+    // an existing output file would be used as a seed
+    Files.deleteIfExists(this.outputFile);
+    this.server.takeRequests();
+    this.server.takeBytes();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.server.close();
+    try (Stream<Path> files = Files.walk(this.directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  public Path zsync(Transfer transfer) throws ZsyncException {
+    final Path output = new Zsync().zsync(this.zsyncFile.toUri(), this.options);
+    transfer.completed(this.server.takeRequests(), this.server.takeBytes());
+    return output;
+  }
+}
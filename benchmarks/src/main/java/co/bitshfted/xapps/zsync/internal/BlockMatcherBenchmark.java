@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.bitshfted.xapps.zsync.ZsyncMake;
+import co.bitshfted.xapps.zsync.benchmarks.SyntheticInput;
+import co.bitshfted.xapps.zsync.benchmarks.Throughput;
+import co.bitshfted.xapps.zsync.internal.util.RollingBuffer;
+import co.bitshfted.xapps.zsync.internal.util.TransferListener.ResourceTransferListener;
+import co.bitshfted.xapps.zsync.internal.util.ZeroPaddedReadableByteChannel;
+
+/**
+ * Scans a synthetic input file with {@link SingleBlockMatcher} or {@link DoubleBlockMatcher} against the control file
+ * of the synthetic target file, the same way input files are scanned by Zsync. Each invocation writes into a fresh
+ * output file, so matched blocks are written as they would be in a real run. Since the synthetic target file is larger
+ * than a block, its control file is generated for sequential matches. The single block matcher is run against the same
+ * truncated checksums, so it sees more weak checksum collisions than it would for a control file without them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockMatcherBenchmark {
+
+  @Param({"1024", "2048", "4096"})
+  public int blockSize;
+
+  @Param
+  public SyntheticInput input;
+
+  @Param({"single", "double"})
+  public String matcher;
+
+  private Path directory;
+  private ControlFile controlFile;
+  private byte[] data;
+  private OutputFileWriter outputFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.directory = Files.createTempDirectory("zsync-benchmark");
+    final byte[] target = SyntheticInput.target();
+    final Path targetFile = Files.write(this.directory.resolve("target"), target);
+    final Path zsyncFile = new ZsyncMake()
+        .writeToFile(targetFile, new ZsyncMake.Options().setBlockSize(this.blockSize)).getOutputFile();
+    final ControlFile controlFile = ControlFile.read(Files.newInputStream(zsyncFile));
+    if ("single".equals(this.matcher)) {
+      final Header h = controlFile.getHeader();
+      final Header header = new Header(h.getVersion(), h.getFilename(), h.getMtime(), h.getBlocksize(), h.getLength(),
+          h.getChecksumBytes(), h.getRsumBytes(), false, h.getUrl(), h.getSha1());
+      this.controlFile = new ControlFile(header, controlFile.getBlockSums());
+    } else {
+      this.controlFile = controlFile;
+    }
+    Files.delete(zsyncFile);
+    Files.delete(targetFile);
+    this.data = this.input.derive(target);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.delete(this.directory);
+  }
+
+  @Setup(Level.Invocation)
+  public void createOutputFile() throws IOException {
+    this.outputFile = new OutputFileWriter(this.directory.resolve("output"), this.controlFile, new NoopListener());
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutputFile() throws IOException {
+    try {
+      this.outputFile.close();
+    } catch (ChecksumValidationIOException e) {
+      // expected unless the input is identical
+    }
+    Files.deleteIfExists(this.directory.resolve("output"));
+    Files.deleteIfExists(this.directory.resolve("output.part"));
+  }
+
+  @Benchmark
+  public boolean match(Throughput throughput) throws IOException {
+    final BlockMatcher matcher = BlockMatcher.create(this.controlFile, this.outputFile.getMatcherIndex());
+    final int matcherBlockSize = matcher.getMatcherBlockSize();
+    ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(this.data));
+    final int lastBlockSize = this.data.length % this.blockSize;
+    if (lastBlockSize > 0) {
+      channel = new ZeroPaddedReadableByteChannel(channel, this.blockSize - lastBlockSize);
+    }
+    final RollingBuffer buffer = new RollingBuffer(channel, matcherBlockSize, 16 * matcherBlockSize);
+    int bytes;
+    do {
+      bytes = matcher.match(this.outputFile, buffer);
+    } while (buffer.advance(bytes));
+    throughput.processed(this.data.length);
+    return this.outputFile.isComplete();
+  }
+
+  private static class NoopListener implements ResourceTransferListener<Path> {
+
+    @Override
+    public void start(Path resource, long length) {}
+
+    @Override
+    public void transferred(long bytes) {}
+
+    @Override
+    public void close() {}
+  }
+}
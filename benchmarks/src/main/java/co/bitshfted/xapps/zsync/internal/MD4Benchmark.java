@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.bitshfted.xapps.zsync.benchmarks.SyntheticInput;
+import co.bitshfted.xapps.zsync.benchmarks.Throughput;
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+/**
+ * Computes the MD4 digest of every block of the synthetic target file, through the message digest provider as before
+ * and with the direct implementation now used for block checksums.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MD4Benchmark {
+
+  @Param({"1024", "2048", "4096"})
+  public int blockSize;
+
+  private byte[] data;
+  private MessageDigest messageDigest;
+  private DirectMD4 directMD4;
+  private byte[] checksum;
+
+  @Setup
+  public void setUp() {
+    this.data = SyntheticInput.target();
+    this.messageDigest = ZsyncUtil.newMD4();
+    this.directMD4 = new DirectMD4();
+    this.checksum = new byte[DirectMD4.DIGEST_LENGTH];
+  }
+
+  @Benchmark
+  public byte messageDigest(Throughput throughput) throws Exception {
+    byte b = 0;
+    for (int offset = 0; offset + this.blockSize <= this.data.length; offset += this.blockSize) {
+      this.messageDigest.update(this.data, offset, this.blockSize);
+      this.messageDigest.digest(this.checksum, 0, this.checksum.length);
+      b ^= this.checksum[0];
+    }
+    throughput.processed(this.data.length);
+    return b;
+  }
+
+  @Benchmark
+  public byte directMD4(Throughput throughput) {
+    byte b = 0;
+    for (int offset = 0; offset + this.blockSize <= this.data.length; offset += this.blockSize) {
+      this.directMD4.digest(this.data, offset, this.blockSize, this.checksum, 0, this.checksum.length);
+      b ^= this.checksum[0];
+    }
+    throughput.processed(this.data.length);
+    return b;
+  }
+}
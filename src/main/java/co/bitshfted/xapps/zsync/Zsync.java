@@ -24,13 +24,16 @@
  */
 package co.bitshfted.xapps.zsync;
 
+import co.bitshfted.xapps.zsync.http.ContentRange;
 import co.bitshfted.xapps.zsync.http.Credentials;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 import co.bitshfted.xapps.zsync.internal.*;
 import co.bitshfted.xapps.zsync.internal.util.*;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.http.HttpClient;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
@@ -38,6 +41,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 
@@ -64,11 +71,24 @@ public class Zsync {
    */
   public static class Options {
 
+    static final long DEFAULT_BLOCK_CACHE_SIZE = 1L << 30;
+
     private List<Path> inputFiles = new ArrayList<>(2);
     private Path outputFile;
     private Path saveZsyncFile;
     private URI zsyncUri;
     private Map<String, Credentials> credentials = new HashMap<>(2);
+    private List<URI> mirrors = new ArrayList<>(2);
+    private int maxConcurrentRequestsPerHost = 1;
+    private int maxRangesPerRequest = ZsyncClient.MAXIMUM_RANGES_PER_HTTP_REQUEST;
+    private long maxRangeGap = 0;
+    private int maxRetries = 3;
+    private Path blockCacheDirectory;
+    private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+    private int inputFileThreads = 1;
+    private boolean mapInputFiles = false;
+    private boolean resumeDownloads = true;
+    private boolean verifyBlocks = true;
 
     public Options() {
       super();
@@ -81,6 +101,17 @@ public class Zsync {
         this.saveZsyncFile = other.saveZsyncFile;
         this.zsyncUri = other.zsyncUri;
         this.credentials.putAll(other.credentials);
+        this.mirrors.addAll(other.mirrors);
+        this.maxConcurrentRequestsPerHost = other.maxConcurrentRequestsPerHost;
+        this.maxRangesPerRequest = other.maxRangesPerRequest;
+        this.maxRangeGap = other.maxRangeGap;
+        this.maxRetries = other.maxRetries;
+        this.blockCacheDirectory = other.blockCacheDirectory;
+        this.blockCacheSize = other.blockCacheSize;
+        this.inputFileThreads = other.inputFileThreads;
+        this.mapInputFiles = other.mapInputFiles;
+        this.resumeDownloads = other.resumeDownloads;
+        this.verifyBlocks = other.verifyBlocks;
       }
     }
 
@@ -204,10 +235,278 @@ public class Zsync {
       return this.credentials;
     }
 
+    /**
+     * Adds a mirror of the remote file named by the <code>URL</code> header of the control file. Missing ranges are
+     * then fetched from the remote file and all mirrors at the same time, with each serving a share in proportion to
+     * its throughput, and a mirror that fails is dropped with its ranges fetched from the others. Relative URIs are
+     * resolved like the <code>URL</code> header.
+     *
+     * @param mirror
+     * @return
+     */
+    public Options addMirror(URI mirror) {
+      ZsyncUtil.checkArgument(mirror != null, "mirror cannot be null");
+      this.mirrors.add(mirror);
+      return this;
+    }
+
+    /**
+     * Mirrors of the remote file to fetch missing ranges from in addition to the <code>URL</code> header of the
+     * control file
+     *
+     * @return
+     */
+    public List<URI> getMirrors() {
+      return this.mirrors;
+    }
+
+    /**
+     * Sets the maximum number of range requests issued to a single host at the same time. With a value greater than 1,
+     * missing ranges are fetched in concurrent batches and written to the output file as they arrive, which hides round
+     * trip latency on slow links. Note that in this case the {@link ZsyncObserver} passed to
+     * {@link Zsync#zsync(URI, Options, ZsyncObserver)} receives download events from multiple threads.
+     *
+     * @param maxConcurrentRequestsPerHost maximum number of requests in flight per host, must be positive
+     * @return
+     */
+    public Options setMaxConcurrentRequestsPerHost(int maxConcurrentRequestsPerHost) {
+      ZsyncUtil.checkArgument(maxConcurrentRequestsPerHost > 0, "maxConcurrentRequestsPerHost must be positive");
+      this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+      return this;
+    }
+
+    /**
+     * Maximum number of range requests in flight per host, defaults to 1
+     *
+     * @return
+     */
+    public int getMaxConcurrentRequestsPerHost() {
+      return this.maxConcurrentRequestsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of ranges requested at once. Larger values need fewer requests, but the server answers
+     * them with a multipart/byteranges response, which adds part headers for every range and delivers the ranges
+     * strictly in sequence. On HTTP/2 connections, concurrent requests are multiplexed as streams over one connection,
+     * so combining a small value, down to a single range per request, with a higher
+     * {@link #setMaxConcurrentRequestsPerHost(int) concurrency} avoids both without opening more connections. Below
+     * this maximum, the number of ranges per request adapts to what the server accepts, see
+     * {@link ZsyncClient#partialGet(URI, List, Map, ZsyncClient.RangeReceiver, ZsyncClient.RangeTransferListener, int, int)}.
+     *
+     * @param maxRangesPerRequest maximum number of ranges per request, must be positive
+     * @return
+     */
+    public Options setMaxRangesPerRequest(int maxRangesPerRequest) {
+      ZsyncUtil.checkArgument(maxRangesPerRequest > 0, "maxRangesPerRequest must be positive");
+      this.maxRangesPerRequest = maxRangesPerRequest;
+      return this;
+    }
+
+    /**
+     * Maximum number of ranges requested at once, defaults to {@value ZsyncClient#MAXIMUM_RANGES_PER_HTTP_REQUEST}. A
+     * higher value lets the number of ranges grow further with servers that accept them, up to what fits into the
+     * Range header
+     *
+     * @return
+     */
+    public int getMaxRangesPerRequest() {
+      return this.maxRangesPerRequest;
+    }
+
+    /**
+     * Sets the maximum number of bytes between two missing ranges that are fetched as one. The blocks in between are
+     * already complete and are downloaded again, so this is the number of bytes worth spending to save one range, i.e.
+     * one part header and one seek on the server, and one request for every {@link #setMaxRangesPerRequest(int)
+     * maxRangesPerRequest} ranges saved. As a rule of thumb, a value close to the bandwidth-delay product of the link
+     * pays off if many small, nearby ranges are missing.
+     *
+     * @param maxRangeGap maximum number of already complete bytes to download again per saved range, must not be negative
+     * @return
+     */
+    public Options setMaxRangeGap(long maxRangeGap) {
+      ZsyncUtil.checkArgument(maxRangeGap >= 0, "maxRangeGap must not be negative");
+      this.maxRangeGap = maxRangeGap;
+      return this;
+    }
+
+    /**
+     * Maximum number of bytes between two missing ranges that are fetched as one, defaults to 0
+     *
+     * @return
+     */
+    public long getMaxRangeGap() {
+      return this.maxRangeGap;
+    }
+
+    /**
+     * Sets the maximum number of times a failed range request is retried. If a request fails with a network error, a
+     * truncated response, or a server error, only the ranges of the request that have not been received yet are
+     * requested again after a growing delay. The maximum applies to all requests of a zsync operation together,
+     * including the requests for blocks that failed {@link #setVerifyBlocks(boolean) verification}.
+     *
+     * @param maxRetries maximum number of retries, must not be negative
+     * @return
+     */
+    public Options setMaxRetries(int maxRetries) {
+      ZsyncUtil.checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Maximum number of times failed range requests are retried, defaults to 3
+     *
+     * @return
+     */
+    public int getMaxRetries() {
+      return this.maxRetries;
+    }
+
+    /**
+     * Sets the directory of a block cache shared by zsync operations, including those of other processes on the same
+     * machine. Blocks received from remote files are stored there, keyed by their checksums, and missing blocks found
+     * there are not requested again, e.g. when several files or versions of a file share changed blocks. The least
+     * recently used blocks are evicted once the cache exceeds its {@link #setBlockCacheSize(long) size}.
+     *
+     * @param blockCacheDirectory directory of the block cache, or null to disable caching
+     * @return
+     */
+    public Options setBlockCacheDirectory(Path blockCacheDirectory) {
+      this.blockCacheDirectory = blockCacheDirectory;
+      return this;
+    }
+
+    /**
+     * Directory of the block cache, defaults to null, i.e. no caching
+     *
+     * @return
+     */
+    public Path getBlockCacheDirectory() {
+      return this.blockCacheDirectory;
+    }
+
+    /**
+     * Sets the number of bytes the block cache may take up after a zsync operation
+     *
+     * @param blockCacheSize maximum size of the block cache in bytes, must not be negative
+     * @return
+     */
+    public Options setBlockCacheSize(long blockCacheSize) {
+      ZsyncUtil.checkArgument(blockCacheSize >= 0, "blockCacheSize must not be negative");
+      this.blockCacheSize = blockCacheSize;
+      return this;
+    }
+
+    /**
+     * Maximum size of the block cache in bytes, defaults to 1GB
+     *
+     * @return
+     */
+    public long getBlockCacheSize() {
+      return this.blockCacheSize;
+    }
+
+    /**
+     * Sets the number of threads used to scan each input file for matching blocks. With a value greater than 1, large
+     * input files are split into overlapping segments that are matched concurrently, which makes scanning scale with
+     * the number of available cores. Small input files are always scanned on a single thread.
+     *
+     * @param inputFileThreads number of threads to scan an input file with, must be positive
+     * @return
+     */
+    public Options setInputFileThreads(int inputFileThreads) {
+      ZsyncUtil.checkArgument(inputFileThreads > 0, "inputFileThreads must be positive");
+      this.inputFileThreads = inputFileThreads;
+      return this;
+    }
+
+    /**
+     * Number of threads used to scan each input file, defaults to 1
+     *
+     * @return
+     */
+    public int getInputFileThreads() {
+      return this.inputFileThreads;
+    }
+
+    /**
+     * Sets whether input files are memory mapped while scanning for matching blocks rather than read through a heap
+     * buffer. Mapping avoids copying the input file, but the mapped sections are only released once garbage collected.
+     * On some platforms, notably Windows, a file cannot be replaced while it is mapped, so this should not be enabled if
+     * the output file is also used as an input file there.
+     *
+     * @param mapInputFiles whether to memory map input files
+     * @return
+     */
+    public Options setMapInputFiles(boolean mapInputFiles) {
+      this.mapInputFiles = mapInputFiles;
+      return this;
+    }
+
+    /**
+     * Whether input files are memory mapped, defaults to false
+     *
+     * @return
+     */
+    public boolean isMapInputFiles() {
+      return this.mapInputFiles;
+    }
+
+    /**
+     * Sets whether interrupted downloads can be resumed. If enabled, the set of completed blocks is periodically saved
+     * to a state file next to the temporary output file. A subsequent run for the same target file verifies the blocks
+     * recorded there against their checksums and only fetches the blocks that are still missing.
+     *
+     * @param resumeDownloads whether to save and restore download progress
+     * @return
+     */
+    public Options setResumeDownloads(boolean resumeDownloads) {
+      this.resumeDownloads = resumeDownloads;
+      return this;
+    }
+
+    /**
+     * Whether interrupted downloads can be resumed, defaults to true
+     *
+     * @return
+     */
+    public boolean isResumeDownloads() {
+      return this.resumeDownloads;
+    }
+
+    /**
+     * Sets whether each downloaded block is verified against its checksums from the zsync file as it is written. A
+     * block that does not match is not written and is requested again, up to the {@link #setMaxRetries(int) maximum
+     * number of retries}, so a range corrupted in transit costs one more request instead of failing the final checksum
+     * validation.
+     *
+     * @param verifyBlocks whether to verify downloaded blocks individually
+     * @return
+     */
+    public Options setVerifyBlocks(boolean verifyBlocks) {
+      this.verifyBlocks = verifyBlocks;
+      return this;
+    }
+
+    /**
+     * Whether downloaded blocks are verified individually, defaults to true
+     *
+     * @return
+     */
+    public boolean isVerifyBlocks() {
+      return this.verifyBlocks;
+    }
+
   }
 
   public static final String VERSION = "0.6.2";
 
+  // minimum number of matcher blocks in an input file segment scanned by its own thread
+  private static final int MINIMUM_SEGMENT_BLOCKS = 64;
+
+  // maximum number of bytes of an input file mapped into memory at once
+  private static final int MAP_SIZE = 64 * 1024 * 1024;
+
   private final ZsyncClient zsyncClient;
 
   /**
@@ -217,7 +516,17 @@ public class Zsync {
     this(ZsyncClient.newZsyncClient());
   }
 
-
+  /**
+   * Creates a new zsync client that sends all requests with the given http client. This allows configuring the HTTP
+   * version, connection timeouts, the executor, a proxy, or an authenticator. For example, to fetch ranges as
+   * multiplexed HTTP/2 streams, pass a client built with {@link HttpClient.Version#HTTP_2} and set
+   * {@link Options#setMaxRangesPerRequest(int)} and {@link Options#setMaxConcurrentRequestsPerHost(int)}.
+   *
+   * @param httpClient http client to send requests with
+   */
+  public Zsync(HttpClient httpClient) {
+    this(ZsyncClient.newZsyncClient(httpClient));
+  }
 
   /* currently internal as ZsyncClient not exposed */
   private Zsync(ZsyncClient zsyncClient) {
@@ -322,20 +631,25 @@ public class Zsync {
     }
 
     // determine remote file location
-    URI remoteFileUri = URI.create(controlFile.getHeader().getUrl());
-    if (!remoteFileUri.isAbsolute()) {
-      if (options.getZsyncFileSource() == null) {
-        throw new IllegalArgumentException(
-            "Remote file path is relative, but no zsync file source URI set to resolve it");
-      }
-      remoteFileUri = options.getZsyncFileSource().resolve(remoteFileUri);
+    final URI remoteFileUri = resolveRemoteFileUri(URI.create(controlFile.getHeader().getUrl()), options);
+    final List<URI> remoteFileUris = new ArrayList<>(1 + options.getMirrors().size());
+    remoteFileUris.add(remoteFileUri);
+    for (URI mirror : options.getMirrors()) {
+      remoteFileUris.add(resolveRemoteFileUri(mirror, options));
     }
 
-    try (final OutputFileWriter outputFileWriter =
-        new OutputFileWriter(outputFile, controlFile, events.getOutputFileWriteListener())) {
-      if (!this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(), events)) {
-        this.zsyncClient.partialGet(remoteFileUri, outputFileWriter.getMissingRanges(), options.getCredentials(),
-            events.getRangeReceiverListener(outputFileWriter), events.getRemoteFileDownloadListener());
+    try {
+      final BlockCache blockCache = options.getBlockCacheDirectory() == null ? null
+          : new BlockCache(options.getBlockCacheDirectory(), options.getBlockCacheSize());
+      try {
+        this.writeOutputFile(outputFile, controlFile, remoteFileUris, options, events, blockCache);
+      } catch (BlockCacheValidationIOException e) {
+        // a cached block shared the truncated checksums of a wanted block, the blocks taken from the cache have been
+        // evicted, so try once more without the cache
+        this.writeOutputFile(outputFile, controlFile, remoteFileUris, options, events, null);
+      }
+      if (blockCache != null) {
+        blockCache.trim();
       }
     } catch (ChecksumValidationIOException exception) {
       throw new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
@@ -346,6 +660,35 @@ public class Zsync {
     return outputFile;
   }
 
+  private void writeOutputFile(Path outputFile, ControlFile controlFile, List<URI> remoteFileUris, Options options,
+      EventDispatcher events, BlockCache blockCache) throws IOException, ZsyncClient.HttpError, InterruptedException {
+    final URI remoteFileUri = remoteFileUris.get(0);
+    try (final OutputFileWriter outputFileWriter =
+        new OutputFileWriter(outputFile, controlFile, events.getOutputFileWriteListener(),
+            options.isResumeDownloads(), blockCache, options.isVerifyBlocks())) {
+      if (!outputFileWriter.isComplete() && !this.processInputFiles(outputFileWriter, controlFile, options, events)
+          && !outputFileWriter.fillFromBlockCache()) {
+        // blocks failing verification stay missing, so each further pass only requests those again; failed
+        // requests and further passes draw from the same retry budget, and a pass that completes no new blocks
+        // would not fare better if repeated
+        final AtomicInteger retriesLeft = new AtomicInteger(options.getMaxRetries());
+        int blocksRemaining = outputFileWriter.getBlocksRemaining();
+        while (true) {
+          final RangePlan plan = outputFileWriter.planMissingRanges(options.getMaxRangeGap());
+          events.remoteFileRangesPlanned(remoteFileUri, plan);
+          this.zsyncClient.partialGet(remoteFileUris, plan.getRanges(), options.getCredentials(),
+              events.getRangeReceiverListener(outputFileWriter), events.getRemoteFileDownloadListener(),
+              options.getMaxConcurrentRequestsPerHost(), options.getMaxRangesPerRequest(), retriesLeft);
+          final int previouslyRemaining = blocksRemaining;
+          blocksRemaining = outputFileWriter.getBlocksRemaining();
+          if (blocksRemaining == 0 || blocksRemaining == previouslyRemaining || retriesLeft.getAndDecrement() <= 0) {
+            break;
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Opens the zsync file referred to by the given URI for read. If the file refers to a local file system path, the
    * local file is opened directly. Otherwise, if the file is remote and {@link Options#getSaveZsyncFile()} is
@@ -399,54 +742,201 @@ public class Zsync {
     return new ObservableInputStream(Files.newInputStream(zsyncFile), events.getControlFileReadListener());
   }
 
-  private boolean processInputFiles(OutputFileWriter targetFile, ControlFile controlFile,
-      Iterable<? extends Path> inputFiles, EventDispatcher events) throws IOException {
-    for (Path inputFile : inputFiles) {
-      if (this.processInputFile(targetFile, controlFile, inputFile, events.getInputFileReadListener())) {
+  /**
+   * Resolves a relative remote file URI against the zsync file source
+   *
+   * @param uri
+   * @param options
+   * @return
+   */
+  private static URI resolveRemoteFileUri(URI uri, Options options) {
+    if (uri.isAbsolute()) {
+      return uri;
+    }
+    if (options.getZsyncFileSource() == null) {
+      throw new IllegalArgumentException(
+          "Remote file path is relative, but no zsync file source URI set to resolve it");
+    }
+    return options.getZsyncFileSource().resolve(uri);
+  }
+
+  private boolean processInputFiles(OutputFileWriter targetFile, ControlFile controlFile, Options options,
+      EventDispatcher events) throws IOException, InterruptedException {
+    for (Path inputFile : options.getInputFiles()) {
+      if (this.processInputFile(targetFile, controlFile, inputFile, options, events.getInputFileReadListener())) {
         return true;
       }
     }
     return false;
   }
 
-  private boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
-      TransferListener.ResourceTransferListener<Path> listener) throws IOException {
-    final long size;
-    try (final FileChannel fileChannel = FileChannel.open(inputFile);
-        final ReadableByteChannel channel =
-            new ObservableRedableByteChannel.ObservableReadableResourceChannel<>(fileChannel, listener, inputFile, size = fileChannel.size())) {
-      final BlockMatcher matcher = BlockMatcher.create(controlFile);
-      final int matcherBlockSize = matcher.getMatcherBlockSize();
-      final ReadableByteChannel c = zeroPad(channel, size, matcherBlockSize, controlFile.getHeader());
-      final RollingBuffer buffer = new RollingBuffer(c, matcherBlockSize, 16 * matcherBlockSize);
-      int bytes;
-      do {
-        bytes = matcher.match(targetFile, buffer);
-      } while (buffer.advance(bytes));
+  /**
+   * Takes the blocks of the input file matching the control file. The input file is often a previous version of the
+   * output file, so it is copied as a whole if it is identical, and otherwise the blocks found at the same offset are
+   * taken first. Only the regions of the input file that did not match at their own offset are then scanned with a
+   * block matcher, so a block that only occurs at an unaligned offset within a matched region is downloaded instead.
+   * The listener counts each byte of the input file once: the reads of the shortcuts are only reported if they
+   * complete the output file, otherwise only the bytes scanned are reported.
+   * <p>
+   * If multiple input file threads are configured, the regions are split into one segment per thread and the segments
+   * are scanned concurrently, each with its own block matcher. Consecutive segments overlap by the matcher block size,
+   * so that blocks spanning a segment boundary are still found. Regions too small to be split are scanned on the
+   * calling thread.
+   */
+  boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
+      Options options, TransferListener.ResourceTransferListener<Path> listener)
+      throws IOException, InterruptedException {
+    final Header header = controlFile.getHeader();
+    final int matcherBlockSize = BlockMatcher.getMatcherBlockSize(header);
+    try (final FileChannel fileChannel = FileChannel.open(inputFile)) {
+      final long size = fileChannel.size();
+      final int padding = paddingLength(size, matcherBlockSize, header);
+      listener.start(inputFile, size);
+      try {
+        if (targetFile.copyIfIdentical(fileChannel)) {
+          listener.transferred(size);
+          return true;
+        }
+        final boolean[] aligned = targetFile.copyAlignedBlocks(fileChannel);
+        if (targetFile.isComplete()) {
+          listener.transferred(size);
+          return true;
+        }
+        final List<ContentRange> regions =
+            unresolvedRegions(aligned, size, padding, header.getBlocksize(), matcherBlockSize);
+        this.scanRegions(targetFile, controlFile, fileChannel, size, regions, padding, options, listener);
+      } finally {
+        listener.close();
+      }
     }
     return targetFile.isComplete();
   }
 
   /**
-   * Pads the given channel with zeros if the length of the input file is not evenly divisible by the block size. The is
-   * necessary to match how the checksums in the zsync file are computed.
+   * Returns the regions of the input file holding windows that start within a block that did not match at its own
+   * offset. Each region is extended to cover the last such window, and extended backwards if needed so that it fits at
+   * least one window.
    *
-   * @param channel channel for input file to pad
+   * @param aligned for each block position, whether the input file matched at that position
+   * @param size length of the input file
+   * @param padding number of zeros the input file is padded with
+   */
+  static List<ContentRange> unresolvedRegions(boolean[] aligned, long size, int padding, int blockSize,
+      int matcherBlockSize) {
+    final List<ContentRange> regions = new ArrayList<>();
+    final long blocks = (size + blockSize - 1) / blockSize;
+    long first = -1;
+    for (long i = 0; i <= blocks; i++) {
+      final boolean unresolved = i < blocks && (i >= aligned.length || !aligned[(int) i]);
+      if (unresolved && first == -1) {
+        first = i;
+      } else if (!unresolved && first != -1) {
+        final long end = Math.min(size, i * blockSize + matcherBlockSize - 1);
+        final long start =
+            Math.max(0, Math.min(first * blockSize, end + (end == size ? padding : 0) - matcherBlockSize));
+        regions.add(new ContentRange(start, end - 1));
+        first = -1;
+      }
+    }
+    return regions;
+  }
+
+  private void scanRegions(OutputFileWriter targetFile, ControlFile controlFile, FileChannel fileChannel, long size,
+      List<ContentRange> regions, int padding, Options options, TransferListener listener)
+      throws IOException, InterruptedException {
+    final int matcherBlockSize = BlockMatcher.getMatcherBlockSize(controlFile.getHeader());
+    long total = 0;
+    for (ContentRange region : regions) {
+      total += region.length();
+    }
+    final int segments =
+        (int) Math.min(options.getInputFileThreads(), total / ((long) MINIMUM_SEGMENT_BLOCKS * matcherBlockSize));
+    final boolean map = options.isMapInputFiles();
+    if (segments <= 1) {
+      for (ContentRange region : regions) {
+        final long end = region.last() + 1;
+        scan(targetFile, controlFile, fileChannel, region.first(), end, end == size ? padding : 0, map, listener);
+      }
+      return;
+    }
+
+    final long segmentLength = (total + segments - 1) / segments;
+    final ExecutorService executor = ZsyncUtil.newDaemonThreadPool(segments, "zsync-input-scanner");
+    try {
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (ContentRange region : regions) {
+        for (long start = region.first(); start <= region.last(); start += segmentLength) {
+          final long segmentStart = start;
+          final long end = Math.min(region.last() + 1, start + segmentLength + matcherBlockSize);
+          futures.add(executor.submit(() -> {
+            scan(targetFile, controlFile, fileChannel, segmentStart, end, end == size ? padding : 0, map, listener);
+            return null;
+          }));
+          if (end == region.last() + 1) {
+            break;
+          }
+        }
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Slides a new block matcher over the given region of the input file, stopping early once the output file is
+   * complete.
+   */
+  private static void scan(OutputFileWriter targetFile, ControlFile controlFile, FileChannel fileChannel, long start,
+      long end, int padding, boolean map, TransferListener listener) throws IOException {
+    final MatcherIndex index = targetFile.getMatcherIndex();
+    final BlockMatcher matcher = BlockMatcher.create(controlFile, index);
+    final int matcherBlockSize = matcher.getMatcherBlockSize();
+    final RollingReadableByteBuffer buffer;
+    if (map) {
+      buffer = new MappedRollingBuffer(fileChannel, start, end, padding, matcherBlockSize, MAP_SIZE, listener);
+    } else {
+      ReadableByteChannel channel =
+          new ObservableRedableByteChannel(new PositionalReadableByteChannel(fileChannel, start, end), listener);
+      if (padding > 0) {
+        channel = new ZeroPaddedReadableByteChannel(channel, padding);
+      }
+      buffer = new RollingBuffer(channel, matcherBlockSize, 16 * matcherBlockSize);
+    }
+    int bytes;
+    do {
+      bytes = matcher.match(targetFile, buffer);
+    } while (!index.isEmpty() && buffer.advance(bytes));
+  }
+
+  /**
+   * Returns the number of zeros to pad the input file with if its length is not evenly divisible by the block size.
+   * This is necessary to match how the checksums in the zsync file are computed.
+   *
+   * @param size length of the input file
+   * @param matcherBlockSize size of the window the matcher slides over the input file
    * @param header header of the zsync file being processed.
    * @return
-   * @throws IOException
    */
-  static ReadableByteChannel zeroPad(ReadableByteChannel channel, long size, int matcherBlockSize, Header header)
-      throws IOException {
-    final int numZeros;
+  static int paddingLength(long size, int matcherBlockSize, Header header) {
     if (size < matcherBlockSize) {
-      numZeros = matcherBlockSize - (int) size;
-    } else {
-      final int blockSize = header.getBlocksize();
-      final int lastBlockSize = (int) (size % blockSize);
-      numZeros = lastBlockSize == 0 ? 0 : blockSize - lastBlockSize;
+      return matcherBlockSize - (int) size;
     }
-    return numZeros == 0 ? channel : new ZeroPaddedReadableByteChannel(channel, numZeros);
+    final int blockSize = header.getBlocksize();
+    final int lastBlockSize = (int) (size % blockSize);
+    return lastBlockSize == 0 ? 0 : blockSize - lastBlockSize;
   }
 
   // this is just a temporary hacked up CLI for testing purposes
@@ -33,6 +33,7 @@ import java.util.Collections;
 import java.util.List;
 
 import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 
 
 /**
@@ -127,6 +128,13 @@ public class ZsyncForwardingObserver extends ZsyncObserver {
     }
   }
 
+  @Override
+  public void remoteFileRangesPlanned(URI uri, RangePlan plan) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.remoteFileRangesPlanned(uri, plan);
+    }
+  }
+
   @Override
   public void remoteFileRangeReceived(ContentRange range) {
     for (ZsyncObserver observer : this.observers) {
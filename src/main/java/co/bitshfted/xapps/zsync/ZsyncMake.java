@@ -24,15 +24,21 @@
 package co.bitshfted.xapps.zsync;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -44,7 +50,12 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
 
 /**
@@ -59,6 +70,14 @@ public class ZsyncMake {
   private static final int BLOCK_SIZE_SMALL = 2048;
   private static final int BLOCK_SIZE_LARGE = 4096;
 
+  // smallest number of blocks checksummed by a single fork-join task
+  private static final int MINIMUM_SLICE_BLOCKS = 256;
+
+  // number of block checksums accumulated before writing them to the checksum buffer
+  private static final int CHUNK_BLOCKS = 4096;
+
+  private static final int DEFAULT_MAX_CHECKSUM_BUFFER_SIZE = 32 << 20;
+
   @SuppressWarnings("serial")
   private static final SimpleDateFormat LAST_MODIFIED_TIME_FORMAT =
       new SimpleDateFormat("EEE, dd MMMMM yyyy HH:mm:ss Z") {
@@ -197,7 +216,7 @@ public class ZsyncMake {
     }
 
     final MessageDigest fileDigest = ZsyncUtil.newSHA1();
-    final MessageDigest blockDigest = ZsyncUtil.newMD4();
+    final DirectMD4 blockDigest = new DirectMD4();
 
     // We don't want to modify the Options object that was passed in, so we create a copy. We then
     // populate any missing
@@ -215,37 +234,39 @@ public class ZsyncMake {
     final int weakChecksumLength = weakChecksumLength(fileLength, blockSize, sequenceMatches);
     final int strongChecksumLength = strongChecksumLength(fileLength, blockSize, sequenceMatches);
 
-    final ByteBuffer checksums = this.computeChecksums(inputFile, blockSize, fileLength, weakChecksumLength,
-        strongChecksumLength, fileDigest, blockDigest);
-
-    // first read sha1 from end of buffer
-    final int pos = checksums.capacity() - fileDigest.getDigestLength();
-    checksums.position(pos);
-    final String sha1 = ZsyncUtil.toHexString(checksums);
-
-    // set buffer to read from beginning to start of fileDigest
-    checksums.clear().limit(pos);
-
-    // first write headers
-    this.writeHeader(out, "zsync", ZSYNC_VERSION);
-    this.writeHeader(out, "Filename", options.getFilename());
-    this.writeHeader(out, "MTime", getFormattedLastModifiedTime(inputFile));
-    this.writeHeader(out, "Blocksize", String.valueOf(blockSize));
-    this.writeHeader(out, "Length", String.valueOf(fileLength));
-    this.writeHeader(out, "Hash-Lengths", sequenceMatches + "," + weakChecksumLength + "," + strongChecksumLength);
-    this.writeHeader(out, "URL", options.getUrl());
-    this.writeHeader(out, "SHA-1", sha1);
-    this.writeHeader(out, "\n");
+    // block checksums are held back until the file checksum is known, since it is written to the header
+    final long checksumsLength = numBlocks(fileLength, blockSize) * (weakChecksumLength + strongChecksumLength);
+    try (final ChecksumBuffer checksums = checksumsLength > options.getMaxChecksumBufferSize()
+        ? new FileChecksumBuffer() : new HeapChecksumBuffer((int) checksumsLength)) {
+
+      final byte[] fileChecksum = options.getThreads() > 1 && fileLength > blockSize
+          ? this.computeChecksumsConcurrently(inputFile, blockSize, fileLength, weakChecksumLength,
+              strongChecksumLength, fileDigest, options.getThreads(), checksums)
+          : this.computeChecksums(inputFile, blockSize, weakChecksumLength, strongChecksumLength, fileDigest,
+              blockDigest, checksums);
+      final String sha1 = ZsyncUtil.toHexString(ByteBuffer.wrap(fileChecksum));
+
+      // first write headers
+      this.writeHeader(out, "zsync", ZSYNC_VERSION);
+      this.writeHeader(out, "Filename", options.getFilename());
+      this.writeHeader(out, "MTime", getFormattedLastModifiedTime(inputFile));
+      this.writeHeader(out, "Blocksize", String.valueOf(blockSize));
+      this.writeHeader(out, "Length", String.valueOf(fileLength));
+      this.writeHeader(out, "Hash-Lengths", sequenceMatches + "," + weakChecksumLength + "," + strongChecksumLength);
+      this.writeHeader(out, "URL", options.getUrl());
+      this.writeHeader(out, "SHA-1", sha1);
+      this.writeHeader(out, "\n");
+
+      try {
+        checksums.transferTo(out);
+      } catch (IOException exception) {
+        throw new RuntimeException("Failed to write checksums", exception);
+      }
 
-    try {
-      do {
-        out.write(checksums);
-      } while (checksums.hasRemaining());
+      return new Result(sha1);
     } catch (IOException exception) {
-      throw new RuntimeException("Failed to write checksums", exception);
+      throw new RuntimeException("Failed to buffer checksums", exception);
     }
-
-    return new Result(sha1);
   }
 
   private void writeHeader(WritableByteChannel out, String name, String value) {
@@ -264,72 +285,287 @@ public class ZsyncMake {
 
   /**
    * Computes block- and file-level checksums for the inputFile according to the given weak and strong checksum lengths.
-   * The returned buffer contains block-level checksum, each (weakLen + strongLen) bytes in size, followed by the
-   * file-level checksum, which for SHA-1 is 20 bytes.
+   * Block-level checksums, each (weakLen + strongLen) bytes in size, are written to the given checksum buffer in block
+   * order. The file-level checksum, which for SHA-1 is 20 bytes, is returned.
    *
-   * @param fileLength Length of the inputFile in bytes
    * @param weakLen Number of bytes to store for weak checksum in bytes
    * @param strongLen Number of bytes to store for strong checksum in bytes
-   * @return byte buffer containing both block and file checksums. The block is returned ready for reading: position at
-   *         0 and limit at capacity.
-   * @throws IOException
+   * @param checksums buffer receiving the block checksums
+   * @return file checksum
    */
-  private ByteBuffer computeChecksums(final Path inputFile, final int blockSize, final long fileLength,
-      final int weakLen, final int strongLen, MessageDigest fileDigest, MessageDigest blockDigest) {
-    if (weakLen < 1 || weakLen > 4) {
-      throw new IllegalArgumentException("weak checksum length must be in interval [1, 4]");
-    }
-    if (strongLen < 1 || strongLen > 16) {
-      throw new IllegalArgumentException("strong checksum length must be in interval [1, 16]");
-    }
-
-    // capacity of buffer is number of blocks times checksum bytes per block
-    final int capacity = ((int) (fileLength / blockSize) + (fileLength % blockSize > 0 ? 1 : 0)) * (weakLen + strongLen)
-        + fileDigest.getDigestLength();
-
-    // output buffer: may want to write to disk at certain size
-    final ByteBuffer checksums = ByteBuffer.allocate(capacity);
+  private byte[] computeChecksums(final Path inputFile, final int blockSize, final int weakLen, final int strongLen,
+      MessageDigest fileDigest, DirectMD4 blockDigest, ChecksumBuffer checksums) {
+    checkChecksumLengths(weakLen, strongLen);
 
     // buffer for converting weak checksum int to bytes
     final ByteBuffer weakBytes = ByteBuffer.allocate(4);
 
+    // buffer for block checksums not yet written to the checksum buffer
+    final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BLOCKS * (weakLen + strongLen));
+
     // buffer for each block read from input file
     final byte[] block = new byte[blockSize];
 
     try {
       // wrap file input stream with digest input stream to compute SHA-1 while reading file
       try (final InputStream in = new DigestInputStream(Files.newInputStream(inputFile), fileDigest)) {
+        long position = 0;
         int read;
         while ((read = in.read(block)) != -1) {
           // pad last block with 0s
           if (read < blockSize) {
             Arrays.fill(block, read, blockSize, (byte) 0);
           }
-
-          // write trailing bytes of weak checksum
-          weakBytes.clear();
-          weakBytes.putInt(ZsyncUtil.computeRsum(block));
-          weakBytes.position(weakBytes.limit() - weakLen);
-          checksums.put(weakBytes);
-
-          // write leading bytes of strong checksum
-          final ByteBuffer strongBytes = ByteBuffer.wrap(blockDigest.digest(block));
-          strongBytes.limit(strongLen);
-          checksums.put(strongBytes);
+          putBlockChecksums(chunk, block, weakBytes, blockDigest, weakLen, strongLen);
+          if (!chunk.hasRemaining()) {
+            position += flush(chunk, checksums, position);
+          }
         }
+        flush(chunk, checksums, position);
       }
     } catch (IOException exception) {
       throw new RuntimeException("Failed calculating zsync checksum", exception);
     }
 
-    // finally add file checksum
-    final ByteBuffer checksum = ByteBuffer.wrap(fileDigest.digest());
-    checksums.put(checksum);
+    return fileDigest.digest();
+  }
+
+  /**
+   * Computes the same checksums as {@link #computeChecksums}, but splits the blocks of the input file into slices that
+   * are checksummed in a fork-join pool. Each slice writes its block checksums at the precomputed offset of its first
+   * block in the checksum buffer, so the result is identical to the serial computation. The file-level SHA-1 checksum
+   * is computed by a separate streaming pass over the file that runs concurrently with the block checksums.
+   *
+   * @param threads Parallelism of the fork-join pool
+   */
+  private byte[] computeChecksumsConcurrently(final Path inputFile, final int blockSize, final long fileLength,
+      final int weakLen, final int strongLen, MessageDigest fileDigest, int threads, ChecksumBuffer checksums) {
+    checkChecksumLengths(weakLen, strongLen);
+    final long numBlocks = numBlocks(fileLength, blockSize);
+
+    final ForkJoinPool pool = new ForkJoinPool(threads);
+    try (final FileChannel channel = FileChannel.open(inputFile)) {
+      final Future<byte[]> sha1 = pool.submit(() -> {
+        try (final InputStream in = Files.newInputStream(inputFile)) {
+          final byte[] buffer = new byte[1 << 16];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            fileDigest.update(buffer, 0, read);
+          }
+        }
+        return fileDigest.digest();
+      });
+      final long threshold = Math.max(MINIMUM_SLICE_BLOCKS, numBlocks / (threads * 4));
+      pool.invoke(new BlockChecksumTask(channel, checksums, 0, numBlocks, threshold, blockSize, weakLen, strongLen));
+      return sha1.get();
+    } catch (IOException | UncheckedIOException exception) {
+      throw new RuntimeException("Failed calculating zsync checksum", exception);
+    } catch (ExecutionException exception) {
+      throw new RuntimeException("Failed calculating zsync checksum", exception.getCause());
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while calculating zsync checksum", exception);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void checkChecksumLengths(int weakLen, int strongLen) {
+    if (weakLen < 1 || weakLen > 4) {
+      throw new IllegalArgumentException("weak checksum length must be in interval [1, 4]");
+    }
+    if (strongLen < 1 || strongLen > 16) {
+      throw new IllegalArgumentException("strong checksum length must be in interval [1, 16]");
+    }
+  }
+
+  private static long numBlocks(long fileLength, int blockSize) {
+    return fileLength / blockSize + (fileLength % blockSize > 0 ? 1 : 0);
+  }
+
+  /**
+   * Writes the trailing weakLen bytes of the rolling checksum and leading strongLen bytes of the MD4 checksum of the
+   * given block to the checksums buffer.
+   */
+  private static void putBlockChecksums(ByteBuffer checksums, byte[] block, ByteBuffer weakBytes,
+      DirectMD4 blockDigest, int weakLen, int strongLen) {
+    // write trailing bytes of weak checksum
+    weakBytes.clear();
+    weakBytes.putInt(ZsyncUtil.computeRsum(block));
+    weakBytes.position(weakBytes.limit() - weakLen);
+    checksums.put(weakBytes);
+
+    // write leading bytes of strong checksum
+    checksums.put(blockDigest.digest(block, 0, block.length), 0, strongLen);
+  }
+
+  /**
+   * Writes the checksums accumulated in the given chunk to the checksum buffer at the given position and clears the
+   * chunk.
+   *
+   * @return number of bytes written
+   */
+  private static int flush(ByteBuffer chunk, ChecksumBuffer checksums, long position) throws IOException {
+    chunk.flip();
+    final int length = chunk.remaining();
+    checksums.write(chunk, position);
+    chunk.clear();
+    return length;
+  }
+
+  /**
+   * Computes the block checksums for blocks [first, last) of the input file, splitting the range in half until it
+   * contains no more than threshold blocks.
+   */
+  @SuppressWarnings("serial")
+  private static class BlockChecksumTask extends RecursiveAction {
+
+    private final FileChannel channel;
+    private final ChecksumBuffer checksums;
+    private final long first;
+    private final long last;
+    private final long threshold;
+    private final int blockSize;
+    private final int weakLen;
+    private final int strongLen;
+
+    BlockChecksumTask(FileChannel channel, ChecksumBuffer checksums, long first, long last, long threshold,
+        int blockSize, int weakLen, int strongLen) {
+      this.channel = channel;
+      this.checksums = checksums;
+      this.first = first;
+      this.last = last;
+      this.threshold = threshold;
+      this.blockSize = blockSize;
+      this.weakLen = weakLen;
+      this.strongLen = strongLen;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.last - this.first <= this.threshold) {
+        try {
+          this.computeDirectly();
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        }
+      } else {
+        final long middle = (this.first + this.last) >>> 1;
+        invokeAll(this.slice(this.first, middle), this.slice(middle, this.last));
+      }
+    }
+
+    private BlockChecksumTask slice(long first, long last) {
+      return new BlockChecksumTask(this.channel, this.checksums, first, last, this.threshold, this.blockSize,
+          this.weakLen, this.strongLen);
+    }
+
+    private void computeDirectly() throws IOException {
+      final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BLOCKS * (this.weakLen + this.strongLen));
+      final ByteBuffer weakBytes = ByteBuffer.allocate(4);
+      final DirectMD4 blockDigest = new DirectMD4();
+      final byte[] block = new byte[this.blockSize];
+      final ByteBuffer buffer = ByteBuffer.wrap(block);
+      // slices write disjoint regions of the checksum buffer
+      long out = this.first * (this.weakLen + this.strongLen);
+      for (long i = this.first; i < this.last; i++) {
+        buffer.clear();
+        long position = i * this.blockSize;
+        int read;
+        while (buffer.hasRemaining() && (read = this.channel.read(buffer, position)) != -1) {
+          position += read;
+        }
+        // pad last block with 0s
+        Arrays.fill(block, buffer.position(), this.blockSize, (byte) 0);
+        putBlockChecksums(chunk, block, weakBytes, blockDigest, this.weakLen, this.strongLen);
+        if (!chunk.hasRemaining()) {
+          out += flush(chunk, this.checksums, out);
+        }
+      }
+      flush(chunk, this.checksums, out);
+    }
+  }
+
+  /**
+   * Holds block checksums until the file checksum has been written to the control file header. Checksums may be
+   * written at arbitrary positions and concurrently, as long as concurrent writes do not overlap.
+   */
+  private interface ChecksumBuffer extends Closeable {
+
+    void write(ByteBuffer src, long position) throws IOException;
+
+    void transferTo(WritableByteChannel out) throws IOException;
+  }
+
+  /**
+   * Buffers checksums in a heap byte buffer.
+   */
+  private static class HeapChecksumBuffer implements ChecksumBuffer {
+
+    private final ByteBuffer buffer;
+
+    HeapChecksumBuffer(int capacity) {
+      this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) {
+      final ByteBuffer dst = this.buffer.duplicate();
+      dst.position((int) position);
+      dst.put(src);
+    }
 
-    // flip to allow reading from buffer
-    checksums.flip();
+    @Override
+    public void transferTo(WritableByteChannel out) throws IOException {
+      final ByteBuffer src = this.buffer.duplicate();
+      src.clear();
+      while (src.hasRemaining()) {
+        out.write(src);
+      }
+    }
 
-    return checksums;
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Spills checksums to a temporary file, which is deleted when the buffer is closed. The checksums are transferred to
+   * the output channel from the file, so heap usage does not depend on the size of the input file.
+   */
+  private static class FileChecksumBuffer implements ChecksumBuffer {
+
+    private final FileChannel channel;
+
+    FileChecksumBuffer() throws IOException {
+      final Path file = Files.createTempFile("zsyncmake", ".checksums");
+      try {
+        this.channel = FileChannel.open(file, READ, WRITE, DELETE_ON_CLOSE);
+      } catch (IOException exception) {
+        Files.deleteIfExists(file);
+        throw exception;
+      }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+      while (src.hasRemaining()) {
+        position += this.channel.write(src, position);
+      }
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel out) throws IOException {
+      final long size = this.channel.size();
+      long position = 0;
+      while (position < size) {
+        position += this.channel.transferTo(position, size - position, out);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.channel.close();
+    }
   }
 
   /**
@@ -349,6 +585,8 @@ public class ZsyncMake {
     private Integer blockSize;
     private String filename;
     private String url;
+    private int threads = 1;
+    private int maxChecksumBufferSize = DEFAULT_MAX_CHECKSUM_BUFFER_SIZE;
 
     public Options() {}
 
@@ -356,6 +594,8 @@ public class ZsyncMake {
       this.blockSize = other.getBlockSize();
       this.filename = other.getFilename();
       this.url = other.getUrl();
+      this.threads = other.getThreads();
+      this.maxChecksumBufferSize = other.getMaxChecksumBufferSize();
     }
 
     public Integer getBlockSize() {
@@ -398,6 +638,45 @@ public class ZsyncMake {
       return this;
     }
 
+    public int getThreads() {
+      return this.threads;
+    }
+
+    /**
+     * Sets the number of threads used to compute block checksums. With more than one thread, slices of the input file
+     * are checksummed in parallel while the SHA-1 checksum of the whole file is computed concurrently. The generated
+     * control file is identical to the one generated with a single thread. Defaults to 1.
+     *
+     * @param threads Number of threads, must be positive
+     */
+    public Options setThreads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("threads must be greater than zero: " + threads);
+      }
+      this.threads = threads;
+      return this;
+    }
+
+    public int getMaxChecksumBufferSize() {
+      return this.maxChecksumBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes of block checksums buffered in memory. Since the SHA-1 checksum of the input
+     * file is written to the header of the control file, block checksums have to be held back until the whole file has
+     * been read. If they exceed this size, they are spilled to a temporary file instead, so that memory usage remains
+     * constant regardless of the size of the input file. Defaults to 32MB.
+     *
+     * @param maxChecksumBufferSize Maximum number of bytes buffered in memory, must not be negative
+     */
+    public Options setMaxChecksumBufferSize(int maxChecksumBufferSize) {
+      if (maxChecksumBufferSize < 0) {
+        throw new IllegalArgumentException("maxChecksumBufferSize must not be negative: " + maxChecksumBufferSize);
+      }
+      this.maxChecksumBufferSize = maxChecksumBufferSize;
+      return this;
+    }
+
     /**
      * Resolves option values which are required for the zsyncmake operation but which were not supplied.
      */
@@ -31,6 +31,7 @@ import java.util.List;
 
 import co.bitshfted.xapps.zsync.Zsync.Options;
 import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 
 /**
  * Observes events over the course of a single zsync invocation.
@@ -59,6 +60,8 @@ public class ZsyncObserver {
 
   public void inputFileReadingComplete() {}
 
+  public void remoteFileRangesPlanned(URI uri, RangePlan plan) {}
+
   public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {}
 
   public void remoteFileDownloadingStarted(URI uri, long length) {}
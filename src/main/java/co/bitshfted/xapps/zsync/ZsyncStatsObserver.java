@@ -39,6 +39,7 @@ import java.util.concurrent.TimeUnit;
 
 import co.bitshfted.xapps.zsync.Zsync.Options;
 import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 import co.bitshfted.xapps.zsync.internal.util.Stopwatch;
 
 public class ZsyncStatsObserver extends ZsyncObserver {
@@ -69,6 +70,10 @@ public class ZsyncStatsObserver extends ZsyncObserver {
 
     Map<List<ContentRange>, Long> getElapsedMillisecondsDownloadingRemoteFileByRequest();
 
+    long getBytesRequestedAgainForMergedRanges();
+
+    int getRangesSavedByMerging();
+
   }
 
 
@@ -80,7 +85,10 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private long elapsedMillisDownloadingControlFile = 0;
   private long elapsedMillisDownloadingRemoteFile = 0;
   private final Map<List<ContentRange>, Long> elapsedMillisByRangeRequest = new HashMap<>();
-  private List<ContentRange> ranges;
+  // range requests may overlap, so each request is timed on the thread that issues it
+  private final ThreadLocal<List<ContentRange>> ranges = new ThreadLocal<>();
+  private final ThreadLocal<Stopwatch> requestStopwatch = ThreadLocal.withInitial(Stopwatch::createUnstarted);
+  private int remoteDownloadsInFlight = 0;
 
   // data
 
@@ -98,27 +106,30 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private long bytesDownloadedForControlFile = 0;
   private long bytesDownloadedFromRemoteTarget = 0;
 
+  private long rangeOverheadBytes = 0;
+  private int rangesSaved = 0;
+
   private Path inputFile;
   private long bytesReadBefore;
   private long bytesWrittenBefore;
 
   @Override
-  public void zsyncStarted(URI requestedZsyncUri, Options options) {
+  public synchronized void zsyncStarted(URI requestedZsyncUri, Options options) {
     this.stopwatch.start();
   }
 
   @Override
-  public void controlFileDownloadingStarted(URI uri, long length) {
+  public synchronized void controlFileDownloadingStarted(URI uri, long length) {
     this.bytesDownloaded = 0;
   }
 
   @Override
-  public void controlFileDownloadingInitiated(URI uri) {
+  public synchronized void controlFileDownloadingInitiated(URI uri) {
     this.downloadStopwatch.start();
   }
 
   @Override
-  public void controlFileDownloadingComplete() {
+  public synchronized void controlFileDownloadingComplete() {
     this.elapsedMillisDownloadingControlFile += this.downloadStopwatch.stop().elapsed(MILLISECONDS);
     this.downloadStopwatch.reset();
     this.elapsedMillisDownloading += this.elapsedMillisDownloadingControlFile;
@@ -128,18 +139,18 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   }
 
   @Override
-  public void controlFileReadingStarted(Path path, long length) {
+  public synchronized void controlFileReadingStarted(Path path, long length) {
     this.bytesRead = 0;
   }
 
   @Override
-  public void controlFileReadingComplete() {
+  public synchronized void controlFileReadingComplete() {
     this.totalBytesRead += this.bytesDownloaded;
     this.totalBytesRead = 0;
   }
 
   @Override
-  public void inputFileReadingStarted(Path inputFile, long length) {
+  public synchronized void inputFileReadingStarted(Path inputFile, long length) {
     this.inputFile = inputFile;
     this.bytesReadBefore = this.totalBytesRead;
     this.bytesWrittenBefore = this.totalBytesWritten;
@@ -147,7 +158,7 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   }
 
   @Override
-  public void inputFileReadingComplete() {
+  public synchronized void inputFileReadingComplete() {
     this.totalBytesRead += this.bytesRead;
     this.bytesReadByInputFile.put(this.inputFile, this.totalBytesRead - this.bytesReadBefore);
     this.bytesWrittenByInputFile.put(this.inputFile, this.totalBytesWritten - this.bytesWrittenBefore);
@@ -158,61 +169,71 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   }
 
   @Override
-  public void outputFileWritingStarted(Path outputFile, long length) {
+  public synchronized void outputFileWritingStarted(Path outputFile, long length) {
     this.bytesWritten = 0;
   }
 
   @Override
-  public void outputFileWritingCompleted() {
+  public synchronized void outputFileWritingCompleted() {
     this.totalBytesWritten += this.bytesWritten;
     this.bytesWritten = 0;
   }
 
   @Override
-  public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
-    this.downloadStopwatch.start();
-    this.ranges = ranges;
+  public synchronized void remoteFileRangesPlanned(URI uri, RangePlan plan) {
+    this.rangeOverheadBytes += plan.getOverheadBytes();
+    this.rangesSaved += plan.getRangesSaved();
   }
 
   @Override
-  public void remoteFileDownloadingStarted(URI uri, long length) {
-    this.bytesDownloaded = 0;
+  public synchronized void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+    if (this.remoteDownloadsInFlight++ == 0) {
+      this.downloadStopwatch.start();
+      this.bytesDownloaded = 0;
+    }
+    this.requestStopwatch.get().reset().start();
+    this.ranges.set(ranges);
   }
 
   @Override
-  public void remoteFileDownloadingComplete() {
-    final long millis = this.downloadStopwatch.stop().elapsed(MILLISECONDS);
-    this.downloadStopwatch.reset();
-    this.elapsedMillisDownloadingRemoteFile += millis;
-    this.elapsedMillisDownloading += millis;
-    this.elapsedMillisByRangeRequest.put(this.ranges, millis);
-    this.ranges = null;
-    this.bytesDownloadedFromRemoteTarget += this.bytesDownloaded;
-    this.totalBytesDownloaded += this.bytesDownloaded;
-    this.bytesDownloaded = 0;
+  public synchronized void remoteFileDownloadingComplete() {
+    final Stopwatch requestStopwatch = this.requestStopwatch.get();
+    this.elapsedMillisByRangeRequest.put(this.ranges.get(), requestStopwatch.stop().elapsed(MILLISECONDS));
+    requestStopwatch.reset();
+    this.ranges.remove();
+    // only account for elapsed time and bytes once all concurrent requests are done
+    if (--this.remoteDownloadsInFlight == 0) {
+      final long millis = this.downloadStopwatch.stop().elapsed(MILLISECONDS);
+      this.downloadStopwatch.reset();
+      this.elapsedMillisDownloadingRemoteFile += millis;
+      this.elapsedMillisDownloading += millis;
+      this.bytesDownloadedFromRemoteTarget += this.bytesDownloaded;
+      this.totalBytesDownloaded += this.bytesDownloaded;
+      this.bytesDownloaded = 0;
+    }
   }
 
   @Override
-  public void bytesDownloaded(long bytes) {
+  public synchronized void bytesDownloaded(long bytes) {
     this.bytesDownloaded += bytes;
   }
 
   @Override
-  public void bytesRead(long bytes) {
+  public synchronized void bytesRead(long bytes) {
     this.bytesRead += bytes;
   }
 
   @Override
-  public void bytesWritten(long bytes) {
+  public synchronized void bytesWritten(long bytes) {
     this.bytesWritten += bytes;
   }
 
   @Override
-  public void zsyncComplete() {
+  public synchronized void zsyncComplete() {
     this.stopwatch.stop();
   }
 
-  public ZsyncStats build() {
+  public synchronized ZsyncStats build() {
     final Map<Path, Long> bytesWrittenByInputFile = Collections.unmodifiableMap(this.bytesWrittenByInputFile);
     final Map<Path, Long> bytesReadByInputFile = Collections.unmodifiableMap(this.bytesReadByInputFile);
     final long totalElapsedMilliseconds = this.stopwatch.elapsed(TimeUnit.MILLISECONDS);
@@ -225,6 +246,8 @@ public class ZsyncStatsObserver extends ZsyncObserver {
     final long bytesDownloadedFromRemoteTarget = this.bytesDownloadedFromRemoteTarget;
     final long totalBytesRead = this.totalBytesRead;
     final long totalBytesWritten = this.totalBytesWritten;
+    final long rangeOverheadBytes = this.rangeOverheadBytes;
+    final int rangesSaved = this.rangesSaved;
 
     return new ZsyncStats() {
       @Override
@@ -286,6 +309,16 @@ public class ZsyncStatsObserver extends ZsyncObserver {
       public Map<List<ContentRange>, Long> getElapsedMillisecondsDownloadingRemoteFileByRequest() {
         return elapsedMillisByRangeRequest;
       }
+
+      @Override
+      public long getBytesRequestedAgainForMergedRanges() {
+        return rangeOverheadBytes;
+      }
+
+      @Override
+      public int getRangesSavedByMerging() {
+        return rangesSaved;
+      }
     };
   }
 }
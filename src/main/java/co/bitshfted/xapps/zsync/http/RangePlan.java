@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+/**
+ * The ranges requested from the remote file after merging missing ranges separated by small gaps, together with what
+ * the merging costs and saves. Merged ranges also cover the blocks in the gaps, which are downloaded again even though
+ * they are already complete, but each merged gap saves a range, i.e. a part header in the multipart response and a
+ * seek on the server, and fewer ranges need fewer requests.
+ */
+public class RangePlan {
+
+  /**
+   * Merges consecutive ranges separated by no more than <code>maxGap</code> bytes.
+   *
+   * @param missing ranges to merge, sorted and not overlapping
+   * @param maxGap maximum number of bytes between two ranges that are merged
+   * @return the plan
+   */
+  public static RangePlan merge(List<ContentRange> missing, long maxGap) {
+    ZsyncUtil.checkArgument(maxGap >= 0, "maxGap must not be negative");
+    final List<ContentRange> ranges = new ArrayList<>();
+    long overheadBytes = 0;
+    ContentRange current = null;
+    for (ContentRange next : missing) {
+      if (current == null) {
+        current = next;
+      } else {
+        final long gap = next.first() - current.last() - 1;
+        if (gap <= maxGap) {
+          current = new ContentRange(current.first(), next.last());
+          overheadBytes += gap;
+        } else {
+          ranges.add(current);
+          current = next;
+        }
+      }
+    }
+    if (current != null) {
+      ranges.add(current);
+    }
+    return new RangePlan(Collections.unmodifiableList(ranges), missing.size(), overheadBytes);
+  }
+
+  private final List<ContentRange> ranges;
+  private final int missingRanges;
+  private final long overheadBytes;
+
+  private RangePlan(List<ContentRange> ranges, int missingRanges, long overheadBytes) {
+    this.ranges = ranges;
+    this.missingRanges = missingRanges;
+    this.overheadBytes = overheadBytes;
+  }
+
+  /**
+   * Returns the ranges to request in ascending order
+   *
+   * @return
+   */
+  public List<ContentRange> getRanges() {
+    return this.ranges;
+  }
+
+  /**
+   * Returns the number of missing ranges before merging
+   *
+   * @return
+   */
+  public int getMissingRanges() {
+    return this.missingRanges;
+  }
+
+  /**
+   * Returns the number of bytes in gaps between missing ranges that are requested again
+   *
+   * @return
+   */
+  public long getOverheadBytes() {
+    return this.overheadBytes;
+  }
+
+  /**
+   * Returns the number of ranges saved by merging
+   *
+   * @return
+   */
+  public int getRangesSaved() {
+    return this.missingRanges - this.ranges.size();
+  }
+
+  /**
+   * Returns the number of requests saved by merging if each request asks for up to the given number of ranges
+   *
+   * @param rangesPerRequest maximum number of ranges per request
+   * @return
+   */
+  public int getRequestsSaved(int rangesPerRequest) {
+    ZsyncUtil.checkArgument(rangesPerRequest > 0, "rangesPerRequest must be positive");
+    return requests(this.missingRanges, rangesPerRequest) - requests(this.ranges.size(), rangesPerRequest);
+  }
+
+  private static int requests(int ranges, int rangesPerRequest) {
+    return (ranges + rangesPerRequest - 1) / rangesPerRequest;
+  }
+
+  @Override
+  public String toString() {
+    return this.ranges.size() + " ranges (" + this.getRangesSaved() + " saved by merging gaps of "
+        + this.overheadBytes + " bytes)";
+  }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+/**
+ * An on-disk store of blocks received from remote files, keyed by block size and the rsum and strong checksum the
+ * control file lists for the block. Blocks are looked up before missing ranges are requested from the network, so
+ * blocks shared by different files or versions are only downloaded once per machine.
+ * <p>
+ * The directory may be shared by several processes. Blocks are written to a temporary file and atomically moved into
+ * place, so readers never see partial blocks. Each block is stored with its SHA-256, which is checked on every read, so
+ * a damaged entry is dropped instead of returned. Keys are derived from truncated checksums, so different blocks may
+ * still share a key; callers {@link #remove(int, int, byte[]) remove} blocks that turn out wrong for the file being
+ * written. The last modified time of a block is updated on every hit, and {@link #trim()} evicts the least
+ * recently used blocks under an exclusive file lock once the directory exceeds its maximum size.
+ */
+public class BlockCache {
+
+  private static final String LOCK_FILE = ".lock";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // length of the SHA-256 stored after each block
+  static final int DIGEST_LENGTH = 32;
+
+  // temporary files left behind by processes that died while storing a block
+  private static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // file locks are held by the process, so threads of the same process trimming the same directory are serialized here
+  private static final Object TRIM_LOCK = new Object();
+
+  private final Path directory;
+  private final long maxSize;
+
+  public BlockCache(Path directory, long maxSize) throws IOException {
+    ZsyncUtil.checkArgument(maxSize >= 0, "maxSize must not be negative");
+    this.directory = Files.createDirectories(directory);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Reads the block with the given key into the given buffer, which must have room for the block.
+   *
+   * @return whether the block was found
+   */
+  public boolean get(int blockSize, int rsum, byte[] checksum, ByteBuffer block) throws IOException {
+    final Path path = this.path(blockSize, rsum, checksum);
+    final int start = block.position();
+    final ByteBuffer digest = ByteBuffer.allocate(DIGEST_LENGTH);
+    try (FileChannel channel = FileChannel.open(path)) {
+      if (channel.size() != blockSize + DIGEST_LENGTH) {
+        return false;
+      }
+      final int limit = block.limit();
+      block.limit(start + blockSize);
+      try {
+        while (block.hasRemaining() || digest.hasRemaining()) {
+          if (channel.read(new ByteBuffer[] {block, digest}) == -1) {
+            block.position(start);
+            return false;
+          }
+        }
+      } finally {
+        block.limit(limit);
+      }
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    final ByteBuffer stored = block.duplicate().position(start).limit(start + blockSize);
+    if (!Arrays.equals(digest.array(), sha256(stored))) {
+      block.position(start);
+      Files.deleteIfExists(path);
+      return false;
+    }
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (NoSuchFileException e) {
+      // evicted concurrently, but the block has been read already
+    }
+    return true;
+  }
+
+  /**
+   * Stores the given block under the given key, unless it is stored already.
+   */
+  public void put(int blockSize, int rsum, byte[] checksum, ByteBuffer block) throws IOException {
+    ZsyncUtil.checkArgument(block.remaining() == blockSize, "block must have blockSize bytes remaining");
+    final Path path = this.path(blockSize, rsum, checksum);
+    if (Files.exists(path)) {
+      return;
+    }
+    final Path parent = Files.createDirectories(path.getParent());
+    final Path tmp = Files.createTempFile(parent, path.getFileName().toString(), TEMP_SUFFIX);
+    try {
+      final ByteBuffer digest = ByteBuffer.wrap(sha256(block.duplicate()));
+      try (FileChannel channel = FileChannel.open(tmp, WRITE)) {
+        while (block.hasRemaining() || digest.hasRemaining()) {
+          channel.write(new ByteBuffer[] {block, digest});
+        }
+      }
+      try {
+        Files.move(tmp, path, ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+        // either stored by another process in the meantime, or not atomically replaceable, where existing wins
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Removes the block with the given key, for a block that has the checksums of a block of the file being written but
+   * turned out to be a different block.
+   */
+  public void remove(int blockSize, int rsum, byte[] checksum) throws IOException {
+    Files.deleteIfExists(this.path(blockSize, rsum, checksum));
+  }
+
+  /**
+   * Evicts the least recently used blocks until the blocks stored take up no more than the maximum size.
+   */
+  // the file lock is only held for the duration of the block, it is not referenced within it
+  @SuppressWarnings("try")
+  public void trim() throws IOException {
+    synchronized (TRIM_LOCK) {
+      try (FileChannel lockChannel = FileChannel.open(this.directory.resolve(LOCK_FILE), CREATE, WRITE);
+          FileLock lock = lockChannel.lock()) {
+        final List<Entry> entries = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        long size = 0;
+        try (Stream<Path> files = Files.walk(this.directory, 2)) {
+          for (Path file : (Iterable<Path>) files::iterator) {
+            final BasicFileAttributes attributes;
+            try {
+              attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+              continue;
+            }
+            final String name = file.getFileName().toString();
+            if (!attributes.isRegularFile() || name.equals(LOCK_FILE)) {
+              continue;
+            }
+            final long modified = attributes.lastModifiedTime().toMillis();
+            if (name.endsWith(TEMP_SUFFIX)) {
+              if (now - modified > STALE_TEMP_FILE_MILLIS) {
+                Files.deleteIfExists(file);
+              }
+              continue;
+            }
+            entries.add(new Entry(file, attributes.size(), modified));
+            size += attributes.size();
+          }
+        }
+        entries.sort(Comparator.comparingLong(e -> e.modified));
+        for (int i = 0; i < entries.size() && size > this.maxSize; i++) {
+          final Entry entry = entries.get(i);
+          try {
+            Files.deleteIfExists(entry.path);
+            size -= entry.size;
+          } catch (IOException e) {
+            // may still be open for read on platforms that do not allow deleting open files
+          }
+        }
+      }
+    }
+  }
+
+  private static byte[] sha256(ByteBuffer block) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(block);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256 unavailable", e);
+    }
+  }
+
+  private Path path(int blockSize, int rsum, byte[] checksum) {
+    final String hex = ZsyncUtil.toHexString(ByteBuffer.wrap(checksum));
+    // fan out by checksum prefix to keep directories small
+    return this.directory.resolve(hex.substring(0, Math.min(2, hex.length())))
+        .resolve(blockSize + "-" + String.format("%08x", rsum) + "-" + hex);
+  }
+
+  private static class Entry {
+    final Path path;
+    final long size;
+    final long modified;
+
+    Entry(Path path, long size, long modified) {
+      this.path = path;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+
+}
@@ -29,9 +29,21 @@ import co.bitshfted.xapps.zsync.internal.util.ReadableByteBuffer;
 
 public abstract class BlockMatcher {
 
-  public static BlockMatcher create(ControlFile controlFile) {
-    return controlFile.getHeader().isSeqMatches() ? new DoubleBlockMatcher(controlFile) : new SingleBlockMatcher(
-        controlFile);
+  /**
+   * Creates a matcher for the given control file, looking up rolling sums in the given index, typically the one shared
+   * by all matchers writing to the same {@link OutputFileWriter}.
+   */
+  public static BlockMatcher create(ControlFile controlFile, MatcherIndex index) {
+    return controlFile.getHeader().isSeqMatches() ? new DoubleBlockMatcher(controlFile, index)
+        : new SingleBlockMatcher(controlFile, index);
+  }
+
+  /**
+   * Returns the size of the window the matcher created for the given control file slides over the
+   * input, without building the matcher.
+   */
+  public static int getMatcherBlockSize(Header header) {
+    return header.isSeqMatches() ? 2 * header.getBlocksize() : header.getBlocksize();
   }
 
   public abstract int getMatcherBlockSize();
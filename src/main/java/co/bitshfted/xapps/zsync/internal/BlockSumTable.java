@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Block sums of a control file in flat, primitive form: rolling sums in an int array, strong checksums back to back in
+ * one byte array, and a hash index on the rolling sum whose chains are threaded through an int array, so that the
+ * table consists of a constant number of objects regardless of the number of blocks.
+ */
+public class BlockSumTable {
+
+  private static final int[] NO_POSITIONS = new int[0];
+
+  public static BlockSumTable read(InputStream in, int numBlocks, int rsumBytes, int checksumBytes)
+      throws IOException {
+    final int[] rsums = new int[numBlocks];
+    final byte[] checksums = new byte[Math.multiplyExact(numBlocks, checksumBytes)];
+    for (int i = 0; i < numBlocks; i++) {
+      rsums[i] = readRsum(in, rsumBytes);
+      readChecksum(in, checksums, i * checksumBytes, checksumBytes);
+    }
+    return new BlockSumTable(rsums, checksums, checksumBytes);
+  }
+
+  static int readRsum(InputStream in, int rsumBytes) throws IOException {
+    int rsum = 0;
+    for (int i = rsumBytes - 1; i >= 0; i--) {
+      int next = in.read();
+      if (next == -1) {
+        throw new IllegalArgumentException("Failed to read rsum: premature end of file");
+      }
+      rsum |= next << (i * 8);
+    }
+    return rsum;
+  }
+
+  static void readChecksum(InputStream in, byte[] b, int offset, int len) throws IOException {
+    int read = 0;
+    int r;
+    while (read < len && (r = in.read(b, offset + read, len - read)) != -1) {
+      read += r;
+    }
+    if (read != len) {
+      throw new IOException("Failed to read block checksums");
+    }
+  }
+
+  private final int[] rsums;
+  private final byte[] checksums;
+  private final int checksumLength;
+
+  // first block of each hash bucket and next block in the same bucket, -1 terminated
+  private final int[] buckets;
+  private final int[] next;
+
+  public BlockSumTable(int[] rsums, byte[] checksums, int checksumLength) {
+    if (checksums.length != rsums.length * checksumLength) {
+      throw new IllegalArgumentException("Checksums do not match number of rsums");
+    }
+    this.rsums = rsums;
+    this.checksums = checksums;
+    this.checksumLength = checksumLength;
+    this.buckets = new int[Integer.highestOneBit(Math.max(1, rsums.length)) << 1];
+    this.next = new int[rsums.length];
+    Arrays.fill(this.buckets, -1);
+    // insert in reverse, so that chains list positions in ascending order
+    for (int i = rsums.length - 1; i >= 0; i--) {
+      final int bucket = this.bucket(rsums[i]);
+      this.next[i] = this.buckets[bucket];
+      this.buckets[bucket] = i;
+    }
+  }
+
+  public int size() {
+    return this.rsums.length;
+  }
+
+  public int getChecksumLength() {
+    return this.checksumLength;
+  }
+
+  public int getRsum(int position) {
+    return this.rsums[position];
+  }
+
+  /**
+   * Returns a copy of the checksum of the block at the given position.
+   */
+  byte[] getChecksum(int position) {
+    final int offset = position * this.checksumLength;
+    return Arrays.copyOfRange(this.checksums, offset, offset + this.checksumLength);
+  }
+
+  /**
+   * Returns whether the block at the given position has the given rolling sum and checksum.
+   */
+  boolean matches(int position, BlockSum sum) {
+    return this.checksumLength == sum.getChecksumLength() && this.matches(position, sum.getRsum(), sum.getChecksum());
+  }
+
+  /**
+   * Returns whether the block at the given position has the given rolling sum and a checksum that starts with the
+   * checksum stored for the block.
+   */
+  boolean matches(int position, int rsum, byte[] checksum) {
+    if (this.rsums[position] != rsum) {
+      return false;
+    }
+    for (int i = 0, j = position * this.checksumLength; i < this.checksumLength; i++, j++) {
+      if (this.checksums[j] != checksum[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the positions of all blocks matching the given sum in ascending order.
+   */
+  int[] getPositions(BlockSum sum) {
+    int[] positions = NO_POSITIONS;
+    int count = 0;
+    for (int i = this.buckets[this.bucket(sum.getRsum())]; i != -1; i = this.next[i]) {
+      if (this.matches(i, sum)) {
+        if (count == positions.length) {
+          positions = Arrays.copyOf(positions, Math.max(1, count << 1));
+        }
+        positions[count++] = i;
+      }
+    }
+    return count == positions.length ? positions : Arrays.copyOf(positions, count);
+  }
+
+  /**
+   * Returns the first block with the given rolling sum, or -1 if there is none.
+   */
+  int firstWithRsum(int rsum) {
+    int i = this.buckets[this.bucket(rsum)];
+    while (i != -1 && this.rsums[i] != rsum) {
+      i = this.next[i];
+    }
+    return i;
+  }
+
+  /**
+   * Returns the next block after the given one with the same rolling sum, or -1 if there is none.
+   */
+  int nextWithRsum(int position) {
+    final int rsum = this.rsums[position];
+    int i = this.next[position];
+    while (i != -1 && this.rsums[i] != rsum) {
+      i = this.next[i];
+    }
+    return i;
+  }
+
+  private int bucket(int rsum) {
+    final int h = rsum * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (this.buckets.length - 1);
+  }
+
+}
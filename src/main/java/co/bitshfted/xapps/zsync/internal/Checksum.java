@@ -26,27 +26,25 @@
 package co.bitshfted.xapps.zsync.internal;
 
 import java.io.IOException;
-import java.security.DigestException;
-import java.security.MessageDigest;
 
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 import co.bitshfted.xapps.zsync.internal.util.ReadableByteBuffer;
-import co.bitshfted.xapps.zsync.internal.util.WritableMessageDigest;
 
 class Checksum {
 
-  private final WritableMessageDigest writableMessageDigest;
+  private final DirectMD4 md4;
   private final int length;
 
   // mutable
   private final byte[] bytes;
   private boolean set;
 
-  Checksum(MessageDigest digest, int length) {
-    this(new WritableMessageDigest(digest), length, new byte[digest.getDigestLength()], false);
+  Checksum(DirectMD4 md4, int length) {
+    this(md4, length, new byte[DirectMD4.DIGEST_LENGTH], false);
   }
 
-  private Checksum(WritableMessageDigest writeableMessageDigest, int length, byte[] bytes, boolean set) {
-    this.writableMessageDigest = writeableMessageDigest;
+  private Checksum(DirectMD4 md4, int length, byte[] bytes, boolean set) {
+    this.md4 = md4;
     this.length = length;
     this.bytes = bytes;
     this.set = set;
@@ -78,11 +76,11 @@ class Checksum {
   }
 
   void setChecksum(ReadableByteBuffer buffer, int offset, int length) {
-    this.writableMessageDigest.getMessageDigest().reset();
+    this.md4.reset();
     try {
-      buffer.write(this.writableMessageDigest, offset, length);
-      this.writableMessageDigest.getMessageDigest().digest(this.bytes, 0, this.bytes.length);
-    } catch (IOException | DigestException e) {
+      buffer.write(this.md4, offset, length);
+      this.md4.finish(this.bytes, 0, this.bytes.length);
+    } catch (IOException e) {
       throw new RuntimeException("Unexpected error during digest computation", e);
     }
     this.set = true;
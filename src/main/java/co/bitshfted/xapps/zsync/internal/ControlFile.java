@@ -27,36 +27,80 @@ package co.bitshfted.xapps.zsync.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 
+import java.util.Arrays;
+
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 import co.bitshfted.xapps.zsync.internal.util.SplitInputStream;
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
 
 public class ControlFile {
 
   public static ControlFile read(final InputStream in) throws IOException {
     final SplitInputStream firstPart = new SplitInputStream(in, new byte[] {'\n', '\n'});
     final Header header = Header.read(firstPart);
-    final List<? extends BlockSum> blockSums =
-        ImmutableBlockSum.readSums(firstPart.next(), header.getNumBlocks(), header.getRsumBytes(),
-            header.getChecksumBytes());
+    final BlockSumTable blockSums =
+        BlockSumTable.read(firstPart.next(), header.getNumBlocks(), header.getRsumBytes(), header.getChecksumBytes());
     return new ControlFile(header, blockSums);
   }
 
   private final Header header;
-  private final List<? extends BlockSum> blockSums;
+  private final BlockSumTable blockSums;
+  private final int[] zeroBlocks;
 
-  public ControlFile(Header header, List<? extends BlockSum> blockSums) {
+  public ControlFile(Header header, BlockSumTable blockSums) {
     super();
     this.header = header;
     this.blockSums = blockSums;
+    this.zeroBlocks = findZeroBlocks(header, blockSums);
+  }
+
+  // the last block is checksummed with zero padding, so a zero filled last block has the same sums as any other. With
+  // sequential matches, the truncated sums are only reliable for pairs of blocks, so like the double block matcher,
+  // a block is only taken to be zero if it is the last block or a neighbouring block matches the zero block as well
+  private static int[] findZeroBlocks(Header header, BlockSumTable blockSums) {
+    final byte[] zeros = new byte[header.getBlocksize()];
+    final int rsumBytes = header.getRsumBytes();
+    final int rsum = ZsyncUtil.computeRsum(zeros) & (rsumBytes == 4 ? -1 : (1 << (rsumBytes * 8)) - 1);
+    final byte[] checksum = new DirectMD4().digest(zeros, 0, zeros.length);
+    int[] positions = new int[0];
+    int count = 0;
+    for (int i = blockSums.firstWithRsum(rsum); i != -1; i = blockSums.nextWithRsum(i)) {
+      if (blockSums.matches(i, rsum, checksum)) {
+        if (count == positions.length) {
+          positions = Arrays.copyOf(positions, Math.max(1, count << 1));
+        }
+        positions[count++] = i;
+      }
+    }
+    if (header.isSeqMatches()) {
+      final int last = header.getNumBlocks() - 1;
+      int paired = 0;
+      for (int k = 0; k < count; k++) {
+        final int i = positions[k];
+        if (i == last || (k + 1 < count && positions[k + 1] == i + 1) || (k > 0 && positions[k - 1] == i - 1)) {
+          positions[paired++] = i;
+        }
+      }
+      count = paired;
+    }
+    return count == positions.length ? positions : Arrays.copyOf(positions, count);
   }
 
   public Header getHeader() {
     return this.header;
   }
 
-  public List<? extends BlockSum> getBlockSums() {
+  public BlockSumTable getBlockSums() {
     return this.blockSums;
   }
 
+  /**
+   * Returns the positions of the blocks of the target file that consist of zeros only, in ascending order. These are
+   * filled in locally instead of being matched or downloaded.
+   */
+  public int[] getZeroBlocks() {
+    return this.zeroBlocks.clone();
+  }
+
 }
@@ -31,9 +31,9 @@ import static co.bitshfted.xapps.zsync.internal.DoubleBlockMatcher.State.MATCHED
 import static co.bitshfted.xapps.zsync.internal.DoubleBlockMatcher.State.MATCHED_FIRST;
 import static co.bitshfted.xapps.zsync.internal.DoubleBlockMatcher.State.MISSED;
 
-import java.security.MessageDigest;
-import java.util.*;
+import java.util.Arrays;
 
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 import co.bitshfted.xapps.zsync.internal.util.ReadableByteBuffer;
 import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
 
@@ -43,40 +43,28 @@ public class DoubleBlockMatcher extends BlockMatcher {
     INIT, MISSED, MATCHED_FIRST, MATCHED_BOTH;
   }
 
+  private static final int[] NO_MATCHES = new int[0];
+
   private final int blockSize;
-  private final Set<Long> rsumHashSet;
+  private final MatcherIndex index;
 
   // mutable state, carried over across invocations
   private State state;
   private final MutableBlockSum currentBlockSum;
   private final MutableBlockSum nextBlockSum;
-  private List<Integer> matches;
+  private int[] matches;
   private byte firstByte;
 
-  public DoubleBlockMatcher(ControlFile controlFile) {
+  public DoubleBlockMatcher(ControlFile controlFile, MatcherIndex index) {
     final Header header = controlFile.getHeader();
     this.blockSize = header.getBlocksize();
 
     this.state = INIT;
-    final MessageDigest digest = ZsyncUtil.newMD4();
+    final DirectMD4 md4 = new DirectMD4();
     this.currentBlockSum =
-        new MutableBlockSum(digest, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
-    this.nextBlockSum = new MutableBlockSum(digest, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
-    this.rsumHashSet = computeRsumHashSet(controlFile.getBlockSums());
-  }
-
-  static Set<Long> computeRsumHashSet(Iterable<? extends BlockSum> blockSums) {
-    final Set<Long> b = new HashSet<>();
-    final Iterator<? extends BlockSum> it = blockSums.iterator();
-    if (it.hasNext()) {
-      BlockSum prev = it.next();
-      while (it.hasNext()) {
-        final BlockSum cur = it.next();
-        b.add(ZsyncUtil.toLong(prev.getRsum(), cur.getRsum()));
-        prev = cur;
-      }
-    }
-    return Collections.unmodifiableSet(b);
+        new MutableBlockSum(md4, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
+    this.nextBlockSum = new MutableBlockSum(md4, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
+    this.index = index;
   }
 
   @Override
@@ -92,7 +80,7 @@ public class DoubleBlockMatcher extends BlockMatcher {
         this.currentBlockSum.rsum.init(buffer, 0, this.blockSize);
         this.nextBlockSum.rsum.init(buffer, this.blockSize, this.blockSize);
         this.matches = this.tryMatchBoth(outputFile, buffer);
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        return this.matches.length == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MISSED:
         // if we missed last time, update rolling sums by one byte and reset checksums
         final byte newByte = buffer.get(this.blockSize - 1);
@@ -101,7 +89,7 @@ public class DoubleBlockMatcher extends BlockMatcher {
         this.nextBlockSum.rsum.update(newByte, buffer.get(buffer.length() - 1));
         this.nextBlockSum.checksum.unset();
         this.matches = this.tryMatchBoth(outputFile, buffer);
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        return this.matches.length == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MATCHED_FIRST:
         // if we matched the first block last time, reuse rolling sum for current block
         this.currentBlockSum.rsum.init(this.nextBlockSum.rsum);
@@ -119,7 +107,7 @@ public class DoubleBlockMatcher extends BlockMatcher {
           this.nextBlockSum.checksum.unset();
           this.matches = this.tryMatchBoth(outputFile, buffer);
         }
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        return this.matches.length == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MATCHED_BOTH:
         // if we matched both blocks last time, reuse rolling sum and checksum for current block
         this.currentBlockSum.rsum.init(this.nextBlockSum.rsum);
@@ -128,7 +116,7 @@ public class DoubleBlockMatcher extends BlockMatcher {
         this.nextBlockSum.checksum.unset();
         // now try to find where current and next match (may overlap with previous matches)
         this.matches = this.tryMatchNext(outputFile, buffer);
-        return this.matches.isEmpty() ? this.matchedFirst() : this.matchedBoth(outputFile, buffer);
+        return this.matches.length == 0 ? this.matchedFirst() : this.matchedBoth(outputFile, buffer);
       default:
         throw new RuntimeException("unmatched state");
     }
@@ -156,52 +144,51 @@ public class DoubleBlockMatcher extends BlockMatcher {
     return this.blockSize;
   }
 
-  private List<Integer> tryMatchBoth(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
-    final List<Integer> matches;
-    final Long r = ZsyncUtil.toLong(this.currentBlockSum.rsum.toInt(), this.nextBlockSum.rsum.toInt());
+  private int[] tryMatchBoth(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
+    final int[] matches;
+    final long r = ZsyncUtil.toLong(this.currentBlockSum.rsum.toInt(), this.nextBlockSum.rsum.toInt());
     // cheap negative check followed by more expensive check
-    if (this.rsumHashSet.contains(r)) {
+    if (this.index.containsRsumPair(r)) {
       // need to compute current block sum
       this.currentBlockSum.checksum.setChecksum(buffer, 0, this.blockSize);
       matches = this.tryMatchNext(outputFile, buffer);
     } else {
-      matches = Collections.emptyList();
+      matches = NO_MATCHES;
     }
     return matches;
   }
 
-  private List<Integer> tryMatchNext(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
-    final List<Integer> positions = outputFile.getPositions(this.currentBlockSum);
-    return (positions == null || positions.isEmpty())  ? Collections.emptyList() : this.filterMatches(outputFile, buffer, positions);
+  private int[] tryMatchNext(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
+    final int[] positions = outputFile.getPositions(this.currentBlockSum);
+    return positions.length == 0 ? positions : this.filterMatches(outputFile, buffer, positions);
   }
 
-  private List<Integer> filterMatches(final OutputFileWriter outputFile, ReadableByteBuffer buffer, List<Integer> positions) {
+  private int[] filterMatches(final OutputFileWriter outputFile, ReadableByteBuffer buffer, int[] positions) {
     // optimize common case
-    if (positions.size() == 1) {
-      return this.isNextMatch(outputFile, buffer, positions.get(0)) ? positions : Collections.<Integer>emptyList();
+    if (positions.length == 1) {
+      return this.isNextMatch(outputFile, buffer, positions[0]) ? positions : NO_MATCHES;
     } else {
-      final List<Integer> b = new ArrayList<>();
-      for (Integer position : positions) {
+      int count = 0;
+      for (int position : positions) {
         if (this.isNextMatch(outputFile, buffer, position)) {
-          b.add(position);
+          positions[count++] = position;
         }
       }
-      return Collections.unmodifiableList(b);
+      return count == positions.length ? positions : Arrays.copyOf(positions, count);
     }
   }
 
-  private boolean isNextMatch(OutputFileWriter outputFile, ReadableByteBuffer buffer, Integer position) {
-    final Integer next = position + 1;
+  private boolean isNextMatch(OutputFileWriter outputFile, ReadableByteBuffer buffer, int position) {
+    final int next = position + 1;
     if (next == outputFile.getNumBlocks()) {
       return true;
     }
-    final BlockSum nextTargetBlock = outputFile.get(next);
-    if (nextTargetBlock.getRsum() == this.nextBlockSum.rsum.toInt()) {
+    if (outputFile.getRsum(next) == this.nextBlockSum.rsum.toInt()) {
       // compute next block sum only once
       if (!this.nextBlockSum.checksum.isSet()) {
         this.nextBlockSum.checksum.setChecksum(buffer, this.blockSize, this.blockSize);
       }
-      return nextTargetBlock.equals(this.nextBlockSum);
+      return outputFile.matches(next, this.nextBlockSum);
     }
     return false;
   }
@@ -40,6 +40,7 @@ import co.bitshfted.xapps.zsync.internal.util.ZsyncClient;
 import co.bitshfted.xapps.zsync.ZsyncObserver;
 import co.bitshfted.xapps.zsync.Zsync.Options;
 import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 
 
 /**
@@ -69,6 +70,10 @@ public class EventDispatcher {
 		this.observer.zsyncComplete();
 	}
 
+	public void remoteFileRangesPlanned(URI uri, RangePlan plan) {
+		this.observer.remoteFileRangesPlanned(uri, plan);
+	}
+
 	public TransferListener.ResourceTransferListener<Path> getControlFileReadListener() {
 		return new TransferListener.ResourceTransferListener<Path>() {
 			@Override
@@ -164,8 +169,8 @@ public class EventDispatcher {
 					}
 
 					@Override
-					public void start(HttpResponse<byte[]> resource, long length) {
-						EventDispatcher.this.observer.remoteFileDownloadingStarted(resource.request().uri(), resource.body().length);
+					public void start(HttpResponse<InputStream> resource, long length) {
+						EventDispatcher.this.observer.remoteFileDownloadingStarted(resource.request().uri(), length);
 
 					}
 
@@ -190,6 +195,11 @@ public class EventDispatcher {
 				rangeReceiver.receive(range, in);
 				EventDispatcher.this.observer.remoteFileRangeReceived(range);
 			}
+
+			@Override
+			public long getLength() {
+				return rangeReceiver.getLength();
+			}
 		};
 	}
 }
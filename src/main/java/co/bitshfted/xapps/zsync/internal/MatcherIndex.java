@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import co.bitshfted.xapps.zsync.internal.util.IntHashSet;
+import co.bitshfted.xapps.zsync.internal.util.LongHashSet;
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+/**
+ * Rolling sums of the target blocks still missing from an output file, shared by all block matchers scanning input
+ * files for it. Sums are removed once no incomplete block has them, so matchers skip the strong checksum for windows
+ * that could only match blocks already written, and stop scanning altogether once every block is complete.
+ * <p>
+ * With sequential matches the index holds the rolling sums of adjacent block pairs instead, a pair being needed until
+ * both of its blocks are complete.
+ * <p>
+ * Lookups may run concurrently with each other and with removals. Removals are made by the {@link OutputFileWriter}
+ * while holding its lock, which also guards the completion state passed in.
+ */
+public class MatcherIndex {
+
+  private final BlockSumTable blockSums;
+  private final boolean[] completed;
+  private final IntHashSet rsums;
+  private final LongHashSet rsumPairs;
+  private volatile int remaining;
+
+  MatcherIndex(BlockSumTable blockSums, boolean seqMatches, boolean[] completed) {
+    this.blockSums = blockSums;
+    this.completed = completed;
+    int remaining = 0;
+    for (boolean c : completed) {
+      if (!c) {
+        remaining++;
+      }
+    }
+    this.remaining = remaining;
+    if (seqMatches) {
+      this.rsums = null;
+      this.rsumPairs = new LongHashSet(remaining);
+      for (int i = 1; i < blockSums.size(); i++) {
+        if (this.isPairNeeded(i)) {
+          this.rsumPairs.add(this.pairKey(i));
+        }
+      }
+    } else {
+      this.rsums = new IntHashSet(remaining);
+      this.rsumPairs = null;
+      for (int i = 0; i < blockSums.size(); i++) {
+        if (!completed[i]) {
+          this.rsums.add(blockSums.getRsum(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether an incomplete block has the given rolling sum.
+   */
+  public boolean containsRsum(int rsum) {
+    return this.rsums.contains(rsum);
+  }
+
+  /**
+   * Returns whether a pair of adjacent blocks, not both complete, has the given rolling sums.
+   *
+   * @see ZsyncUtil#toLong(int, int)
+   */
+  public boolean containsRsumPair(long rsumPair) {
+    return this.rsumPairs.contains(rsumPair);
+  }
+
+  /**
+   * Returns whether every block of the output file is complete, in which case there is nothing left to match.
+   */
+  public boolean isEmpty() {
+    return this.remaining == 0;
+  }
+
+  /**
+   * Removes the sums of the given block, which has just been marked complete, where no other block needs them.
+   */
+  void blockCompleted(int position) {
+    this.remaining--;
+    if (this.rsums != null) {
+      final int rsum = this.blockSums.getRsum(position);
+      for (int i = this.blockSums.firstWithRsum(rsum); i != -1; i = this.blockSums.nextWithRsum(i)) {
+        if (!this.completed[i]) {
+          return;
+        }
+      }
+      this.rsums.remove(rsum);
+    } else {
+      this.pairCompleted(position);
+      this.pairCompleted(position + 1);
+    }
+  }
+
+  // the pair ending at the given block
+  private void pairCompleted(int last) {
+    if (last < 1 || last >= this.completed.length || this.isPairNeeded(last)) {
+      return;
+    }
+    final int previousRsum = this.blockSums.getRsum(last - 1);
+    for (int i = this.blockSums.firstWithRsum(this.blockSums.getRsum(last)); i != -1; i =
+        this.blockSums.nextWithRsum(i)) {
+      if (i > 0 && this.blockSums.getRsum(i - 1) == previousRsum && this.isPairNeeded(i)) {
+        return;
+      }
+    }
+    this.rsumPairs.remove(this.pairKey(last));
+  }
+
+  private boolean isPairNeeded(int last) {
+    return !this.completed[last - 1] || !this.completed[last];
+  }
+
+  private long pairKey(int last) {
+    return ZsyncUtil.toLong(this.blockSums.getRsum(last - 1), this.blockSums.getRsum(last));
+  }
+
+}
@@ -25,16 +25,15 @@
  */
 package co.bitshfted.xapps.zsync.internal;
 
-import java.security.MessageDigest;
-
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 
 class MutableBlockSum extends BlockSum {
 
   final Rsum rsum;
   final Checksum checksum;
 
-  MutableBlockSum(MessageDigest digest, int blockSize, int rsumLength, int checksumLength) {
-    this(new Rsum(rsumLength, blockSize), new Checksum(digest, checksumLength));
+  MutableBlockSum(DirectMD4 md4, int blockSize, int rsumLength, int checksumLength) {
+    this(new Rsum(rsumLength, blockSize), new Checksum(md4, checksumLength));
   }
 
   MutableBlockSum(Rsum rsum, Checksum checksum) {
@@ -26,22 +26,33 @@
  */
 package co.bitshfted.xapps.zsync.internal;
 
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
+import co.bitshfted.xapps.zsync.internal.util.PositionalReadableByteChannel;
 import co.bitshfted.xapps.zsync.internal.util.ReadableByteBuffer;
+import co.bitshfted.xapps.zsync.internal.util.SliceInputStream;
 import co.bitshfted.xapps.zsync.internal.util.TransferListener;
 import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
 import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
 import co.bitshfted.xapps.zsync.internal.util.ZsyncClient.RangeReceiver;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
@@ -51,26 +62,95 @@ import static java.nio.file.attribute.FileTime.fromMillis;
 
 public class OutputFileWriter implements RangeReceiver, Closeable {
 
+  // identifies the format of the state file
+  private static final int STATE_MAGIC = 0x7a737374;
+  private static final int STATE_VERSION = 1;
+
+  private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+  // upper bound for a run of matched blocks combined into one write
+  private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+  // minimum time between two updates of the state file
+  private static final long STATE_SAVE_INTERVAL_NANOS = 1_000_000_000L;
+
   // immutable state
   private final Path path;
   private final Path tempPath;
+  private final Path statePath;
 
   private final int blockSize;
   private final int lastBlockSize;
   private final long length;
   private final String sha1;
   private final long mtime;
-  private final List<BlockSum> blockSums;
-  private final Map<BlockSum, List<Integer>> positions;
+  private final int rsumBytes;
+  private final boolean seqMatches;
+  private final BlockSumTable blockSums;
+  private final BlockCache blockCache;
+  private final boolean verifyBlocks;
   // mutable state
   private final FileChannel channel;
   private final boolean[] completed;
+  private final boolean[] zeroBlocks;
+  // blocks taken from the block cache, lazily allocated
+  private boolean[] cachedBlocks;
+  private final ByteBuffer zeroBlock;
   private int blocksRemaining;
+  private MatcherIndex matcherIndex;
+  private PendingRun pendingRun;
+  // SHA-1 of the leading blocks verified so far, and its hex value once all blocks are
+  private final MessageDigest sha1Digest;
+  private int sha1Blocks;
+  private String calculatedSha1;
+  private ByteBuffer readBackBuffer;
   private TransferListener listener;
+  private long stateSaved;
 
   public OutputFileWriter(Path path, ControlFile controlFile, TransferListener.ResourceTransferListener<Path> listener)
       throws IOException {
+    this(path, controlFile, listener, false);
+  }
+
+  /**
+   * Creates a writer for the given output file.
+   *
+   * @param resume if true, block completion state is periodically saved next to the temporary output file and blocks
+   *        recorded as complete by a previous, interrupted run are reused after verifying their checksums
+   */
+  public OutputFileWriter(Path path, ControlFile controlFile, TransferListener.ResourceTransferListener<Path> listener,
+      boolean resume) throws IOException {
+    this(path, controlFile, listener, resume, null);
+  }
+
+  /**
+   * Creates a writer for the given output file.
+   *
+   * @param resume if true, block completion state is periodically saved next to the temporary output file and blocks
+   *        recorded as complete by a previous, interrupted run are reused after verifying their checksums
+   * @param blockCache cache to store received blocks in and to {@link #fillFromBlockCache() fill} missing blocks from,
+   *        may be null
+   */
+  public OutputFileWriter(Path path, ControlFile controlFile, TransferListener.ResourceTransferListener<Path> listener,
+      boolean resume, BlockCache blockCache) throws IOException {
+    this(path, controlFile, listener, resume, blockCache, false);
+  }
+
+  /**
+   * Creates a writer for the given output file.
+   *
+   * @param resume if true, block completion state is periodically saved next to the temporary output file and blocks
+   *        recorded as complete by a previous, interrupted run are reused after verifying their checksums
+   * @param blockCache cache to store received blocks in and to {@link #fillFromBlockCache() fill} missing blocks from,
+   *        may be null
+   * @param verifyBlocks if true, each received block is checked against its checksums before it is written, and left
+   *        missing if it does not match
+   */
+  public OutputFileWriter(Path path, ControlFile controlFile, TransferListener.ResourceTransferListener<Path> listener,
+      boolean resume, BlockCache blockCache, boolean verifyBlocks) throws IOException {
     this.path = path;
+    this.blockCache = blockCache;
+    this.verifyBlocks = verifyBlocks;
     this.listener = listener;
 
     final Header header = controlFile.getHeader();
@@ -92,61 +172,484 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     } else {
       this.tempPath = Paths.get(tmpName);
     }
-    this.channel = FileChannel.open(this.tempPath, CREATE, WRITE, READ);
-
+    this.statePath = resume ? this.tempPath.resolveSibling(tmpName + ".state") : null;
+    // blocks of zeros are not written beyond the end of the file, which leaves holes in file systems supporting sparse
+    // files; some only do so if asked when the file is created
+    this.channel = Files.exists(this.tempPath) ? FileChannel.open(this.tempPath, WRITE, READ)
+        : FileChannel.open(this.tempPath, CREATE_NEW, WRITE, READ, SPARSE);
 
-    this.blockSums = Collections.unmodifiableList(controlFile.getBlockSums());
-    this.positions = indexPositions(this.blockSums);
+    this.rsumBytes = header.getRsumBytes();
+    this.seqMatches = header.isSeqMatches();
+    this.blockSums = controlFile.getBlockSums();
     this.completed = new boolean[this.blockSums.size()];
     this.blocksRemaining = this.completed.length;
+    this.sha1Digest = ZsyncUtil.newSHA1();
+    this.zeroBlocks = new boolean[this.completed.length];
+    final int[] zeroBlocks = controlFile.getZeroBlocks();
+    for (int i : zeroBlocks) {
+      this.zeroBlocks[i] = true;
+    }
+    this.zeroBlock = zeroBlocks.length == 0 ? null : ByteBuffer.allocate(this.blockSize);
+    if (this.statePath != null) {
+      this.resume();
+    }
+    this.fillZeroBlocks();
+    this.stateSaved = System.nanoTime();
   }
 
-  static Map<BlockSum, List<Integer>> indexPositions(List<BlockSum> blockSums) {
-    final Map<BlockSum, List<Integer>> b = new HashMap<>();
-    for (int i = 0; i < blockSums.size(); i++) {
-      var list = b.get(blockSums.get(i));
-      if(list != null) {
-        b.get(blockSums.get(i)).add(i);
-      } else {
-        list = new ArrayList<>();
-        list.add(i);
-        b.put(blockSums.get(i), list);
+  /**
+   * Marks blocks recorded as complete in the state file as complete again, provided the state file was written for the
+   * same target file and the block in the temporary output file still matches its checksums.
+   */
+  private void resume() throws IOException {
+    final boolean[] saved = this.readState();
+    if (saved == null) {
+      return;
+    }
+    final DirectMD4 md4 = new DirectMD4();
+    final ByteBuffer block = ByteBuffer.allocate(this.blockSize);
+    for (int i = 0; i < saved.length; i++) {
+      if (saved[i] && this.verify(i, block, md4)) {
+        this.complete(i, block.flip());
+      }
+    }
+  }
+
+  /**
+   * Completes the blocks consisting of zeros only. Blocks past the current end of the temporary output file are not
+   * written at all, since that part of the file reads as zeros once the file is extended to its full length.
+   */
+  private void fillZeroBlocks() throws IOException {
+    final long size = this.channel.size();
+    for (int i = 0; i < this.completed.length; i++) {
+      if (!this.zeroBlocks[i] || this.completed[i]) {
+        continue;
+      }
+      final int l = i == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
+      long offset = (long) i * this.blockSize;
+      if (offset < size) {
+        final ByteBuffer zeros = this.zeroBlock.duplicate().limit(l);
+        while (zeros.hasRemaining()) {
+          offset += this.channel.write(zeros, offset);
+        }
       }
+      this.listener.transferred(l);
+      this.complete(i, this.zeroBlock.duplicate());
+    }
+  }
+
+  private boolean verify(int position, ByteBuffer block, DirectMD4 md4) throws IOException {
+    return this.read(this.channel, position, block) && this.checksumMatches(position, block.array(), md4);
+  }
+
+  /**
+   * Reads the block at the given position from the given file into the given buffer, zero padding the last block.
+   *
+   * @return false if the file ends before the block
+   */
+  private boolean read(FileChannel channel, int position, ByteBuffer block) throws IOException {
+    block.clear();
+    if (position == this.completed.length - 1) {
+      block.limit(this.lastBlockSize);
+    }
+    long offset = (long) position * this.blockSize;
+    while (block.hasRemaining()) {
+      final int read = channel.read(block, offset);
+      if (read == -1) {
+        return false;
+      }
+      offset += read;
+    }
+    // the last block is checksummed with zero padding
+    block.limit(block.capacity());
+    while (block.hasRemaining()) {
+      block.put((byte) 0);
+    }
+    return true;
+  }
+
+  // the rolling sum is cheap and rules out most mismatches, the checksum is only computed if it matches
+  private boolean checksumMatches(int position, byte[] block, DirectMD4 md4) {
+    final int rsum = ZsyncUtil.computeRsum(block) & (this.rsumBytes == 4 ? -1 : (1 << (this.rsumBytes * 8)) - 1);
+    return rsum == this.blockSums.getRsum(position)
+        && this.blockSums.matches(position, rsum, md4.digest(block, 0, block.length));
+  }
+
+  // checks a full size block in the remaining bytes of the given buffer without copying it or changing its position
+  private boolean checksumMatches(int position, ByteBuffer block, DirectMD4 md4, byte[] checksum) {
+    final int rsum = ZsyncUtil.computeRsum(block) & (this.rsumBytes == 4 ? -1 : (1 << (this.rsumBytes * 8)) - 1);
+    if (rsum != this.blockSums.getRsum(position)) {
+      return false;
+    }
+    md4.reset();
+    md4.update(block.duplicate());
+    md4.finish(checksum, 0, checksum.length);
+    return this.blockSums.matches(position, rsum, checksum);
+  }
+
+  /**
+   * Copies the given seed file as a whole if it has the length and SHA-1 of the output file.
+   *
+   * @param seed seed file to copy
+   * @return whether the seed file was copied, in which case the output file is complete
+   */
+  public boolean copyIfIdentical(FileChannel seed) throws IOException {
+    if (seed.size() != this.length || this.isComplete()) {
+      return false;
+    }
+    final String seedSha1 = ZsyncUtil.computeSha1(new PositionalReadableByteChannel(seed, 0, this.length));
+    if (!this.sha1.equals(seedSha1)) {
+      return false;
+    }
+    synchronized (this) {
+      // the copy is verified as a whole, blocks need not be read back
+      this.sha1Blocks = this.completed.length;
+      this.calculatedSha1 = seedSha1;
+      this.channel.position(0);
+      long position = 0;
+      while (position < this.length) {
+        position += seed.transferTo(position, this.length - position, this.channel);
+      }
+      for (int i = 0; i < this.completed.length; i++) {
+        if (!this.completed[i]) {
+          this.listener.transferred(i == this.completed.length - 1 ? this.lastBlockSize : this.blockSize);
+          this.complete(i, null);
+        }
+      }
+      this.stateChanged();
+    }
+    return true;
+  }
+
+  /**
+   * Checks each block-aligned window of the given seed file against the output file block at the same position and
+   * writes the blocks that match, which takes one checksum per block instead of a rolling scan. If the control file
+   * requires sequential matches, a block is only taken if a neighbouring block matches as well.
+   *
+   * @param seed seed file to take blocks from
+   * @return for each block position, whether the window of the seed file at that position matched
+   */
+  public boolean[] copyAlignedBlocks(FileChannel seed) throws IOException {
+    final long size = seed.size();
+    final boolean[] matched =
+        new boolean[(int) Math.min(this.completed.length, (size + this.blockSize - 1) / this.blockSize)];
+    final DirectMD4 md4 = new DirectMD4();
+    ByteBuffer block = ByteBuffer.allocate(this.blockSize);
+    ByteBuffer previous = ByteBuffer.allocate(this.blockSize);
+    boolean previousMatched = false;
+    // first block of the run of matched blocks not copied yet
+    int run = -1;
+    for (int i = 0; i < matched.length; i++) {
+      final boolean read = this.read(seed, i, block);
+      final boolean match = read && this.checksumMatches(i, block.array(), md4);
+      if (match && !this.seqMatches) {
+        matched[i] = true;
+      } else if (match && previousMatched) {
+        matched[i - 1] = true;
+        matched[i] = true;
+      }
+      if (matched[i] && run == -1) {
+        run = i > 0 && matched[i - 1] ? i - 1 : i;
+      } else if (!matched[i] && run != -1) {
+        this.copyBlocks(seed, run, i - 1);
+        run = -1;
+      }
+      previousMatched = match;
+      final ByteBuffer swap = previous;
+      previous = block;
+      block = swap;
+    }
+    if (run != -1) {
+      this.copyBlocks(seed, run, matched.length - 1);
+    }
+    return matched;
+  }
 
+  /**
+   * Copies the given blocks, which are at the same offset in the seed file and have been verified, with one transfer
+   * per run of blocks not complete yet.
+   */
+  private synchronized void copyBlocks(FileChannel seed, int first, int last) throws IOException {
+    final long size = seed.size();
+    int i = first;
+    while (i <= last) {
+      if (this.completed[i]) {
+        i++;
+        continue;
+      }
+      int end = i;
+      while (end < last && !this.completed[end + 1]) {
+        end++;
+      }
+      final long start = (long) i * this.blockSize;
+      final long length = this.blockEnd(end) - start;
+      // a padded last block may extend past the end of the seed, the zeros it was matched with are written instead
+      final long available = Math.max(0, Math.min(length, size - start));
+      // transferFrom would not write past the current end of the output file
+      this.channel.position(start);
+      long transferred = 0;
+      while (transferred < available) {
+        transferred += seed.transferTo(start + transferred, available - transferred, this.channel);
+      }
+      final ByteBuffer zeros = ByteBuffer.allocate((int) (length - available));
+      while (zeros.hasRemaining()) {
+        this.channel.write(zeros, start + available + zeros.position());
+      }
+      for (; i <= end; i++) {
+        this.listener.transferred(i == this.completed.length - 1 ? this.lastBlockSize : this.blockSize);
+        this.complete(i, null);
+      }
+    }
+    this.stateChanged();
+  }
+
+  // offset just past the given block in the output file
+  private long blockEnd(int position) {
+    return position == this.completed.length - 1 ? this.length : (long) (position + 1) * this.blockSize;
+  }
+
+  /**
+   * Writes the missing blocks found in the block cache, verifying each against its checksums first.
+   *
+   * @return whether the output file is complete
+   */
+  public boolean fillFromBlockCache() {
+    if (this.blockCache == null || this.isComplete()) {
+      return this.isComplete();
+    }
+    final DirectMD4 md4 = new DirectMD4();
+    final ByteBuffer block = ByteBuffer.allocate(this.blockSize);
+    for (int i = 0; i < this.completed.length; i++) {
+      if (this.completed[i]) {
+        continue;
+      }
+      block.clear();
+      try {
+        if (!this.blockCache.get(this.blockSize, this.blockSums.getRsum(i), this.blockSums.getChecksum(i), block)) {
+          continue;
+        }
+      } catch (IOException e) {
+        // the cache is best effort, the block is downloaded instead
+        continue;
+      }
+      if (this.checksumMatches(i, block.array(), md4)) {
+        try {
+          this.writeVerifiedBlock(i, block.clear().limit(i == this.completed.length - 1 ? this.lastBlockSize : this.blockSize));
+        } catch (IOException e) {
+          throw new RuntimeException("Failed to write block at position " + i, e);
+        }
+        if (this.cachedBlocks == null) {
+          this.cachedBlocks = new boolean[this.completed.length];
+        }
+        this.cachedBlocks[i] = true;
+      }
+    }
+    return this.isComplete();
+  }
+
+  private synchronized void writeVerifiedBlock(int position, ByteBuffer block) throws IOException {
+    if (this.completed[position]) {
+      return;
+    }
+    final int start = block.position();
+    final int l = block.remaining();
+    long offset = (long) position * this.blockSize;
+    while (block.hasRemaining()) {
+      offset += this.channel.write(block, offset);
+    }
+    this.listener.transferred(l);
+    this.complete(position, block.position(start));
+    this.stateChanged();
+  }
+
+  /**
+   * Stores the blocks in the given range in the block cache, provided they match their checksums.
+   */
+  private void cacheBlocks(int first, int last) {
+    final DirectMD4 md4 = new DirectMD4();
+    final ByteBuffer block = ByteBuffer.allocate(this.blockSize);
+    try {
+      for (int i = first; i <= last; i++) {
+        if (this.read(this.channel, i, block) && this.checksumMatches(i, block.array(), md4)) {
+          this.blockCache.put(this.blockSize, this.blockSums.getRsum(i), this.blockSums.getChecksum(i), block.flip());
+        }
+      }
+    } catch (IOException e) {
+      // the cache is best effort, failing to populate it does not affect the output file
+    }
+  }
+
+  /**
+   * Stores the given verified, zero padded block in the block cache.
+   */
+  private void cacheBlock(int position, ByteBuffer block) {
+    try {
+      this.blockCache.put(this.blockSize, this.blockSums.getRsum(position), this.blockSums.getChecksum(position),
+          block);
+    } catch (IOException e) {
+      // the cache is best effort, failing to populate it does not affect the output file
+    }
+  }
+
+  private boolean[] readState() throws IOException {
+    if (!Files.exists(this.statePath)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.statePath)))) {
+      if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION || !this.sha1.equals(in.readUTF())
+          || in.readInt() != this.blockSize || in.readLong() != this.length || in.readInt() != this.completed.length) {
+        return null;
+      }
+      final boolean[] saved = new boolean[this.completed.length];
+      int b = 0;
+      for (int i = 0; i < saved.length; i++) {
+        if (i % 8 == 0) {
+          b = in.readUnsignedByte();
+        }
+        saved[i] = (b & (1 << (i % 8))) != 0;
+      }
+      return saved;
+    } catch (IOException e) {
+      // a state file truncated by a crash is useless, but not an error
+      return null;
+    }
+  }
+
+  /**
+   * Writes the block completion state to a temporary file, which then replaces the state file, so that a crash while
+   * saving leaves the previous state intact.
+   */
+  private void saveState() throws IOException {
+    // blocks recorded as complete must be on disk
+    this.flushPendingRun();
+    final Path tmp = this.statePath.resolveSibling(this.statePath.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(STATE_MAGIC);
+      out.writeInt(STATE_VERSION);
+      out.writeUTF(this.sha1);
+      out.writeInt(this.blockSize);
+      out.writeLong(this.length);
+      out.writeInt(this.completed.length);
+      int b = 0;
+      for (int i = 0; i < this.completed.length; i++) {
+        if (this.completed[i]) {
+          b |= 1 << (i % 8);
+        }
+        if (i % 8 == 7 || i == this.completed.length - 1) {
+          out.writeByte(b);
+          b = 0;
+        }
+      }
+    }
+    try {
+      Files.move(tmp, this.statePath, REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, this.statePath, REPLACE_EXISTING);
+    }
+    this.stateSaved = System.nanoTime();
+  }
+
+  // called with the lock held after blocks have been completed
+  private void stateChanged() {
+    if (this.statePath != null && System.nanoTime() - this.stateSaved > STATE_SAVE_INTERVAL_NANOS) {
+      try {
+        this.saveState();
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to save state to " + this.statePath, e);
+      }
     }
-    return Collections.unmodifiableMap(b);
   }
 
   public int getNumBlocks() {
     return this.blockSums.size();
   }
 
-  public BlockSum get(int index) {
-    return this.blockSums.get(index);
+  int getRsum(int position) {
+    return this.blockSums.getRsum(position);
+  }
+
+  /**
+   * Returns whether the block at the given position of the output file has the given block sum.
+   */
+  boolean matches(int position, BlockSum sum) {
+    return this.blockSums.matches(position, sum);
   }
 
-  public List<Integer> getPositions(BlockSum sum) {
-    return this.positions.get(sum);
+  /**
+   * Returns the positions of all blocks in the output file with the given block sum in ascending order.
+   */
+  int[] getPositions(BlockSum sum) {
+    return this.blockSums.getPositions(sum);
   }
 
   public boolean writeBlock(int position, ReadableByteBuffer data) {
     return this.writeBlock(position, data, 0);
   }
 
-  public boolean writeBlock(int position, ReadableByteBuffer data, int offset) {
+  // synchronized, since input files may be scanned by several matchers concurrently
+  public synchronized boolean writeBlock(int position, ReadableByteBuffer data, int offset) {
     if (this.completed[position]) {
       return false;
     }
     final int l = position == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
     try {
-      this.channel.position(position * this.blockSize);
-      data.write(this.channel, offset, l);
+      final ByteBuffer buffered = this.bufferBlock(position, data, offset, l);
       this.listener.transferred(l);
+      this.complete(position, buffered);
     } catch (IOException e) {
-      throw new RuntimeException("Failed to read block at position " + position, e);
+      throw new RuntimeException("Failed to write block at position " + position, e);
     }
-    this.blocksRemaining--;
-    return this.completed[position] = true;
+    this.stateChanged();
+    return true;
+  }
+
+  /**
+   * Appends the block to the pending run if it directly follows it, otherwise writes the pending run out first. Seed
+   * regions matching the target tend to match block after block, so this saves a write per block.
+   *
+   * @return view of the block in the pending run
+   */
+  private ByteBuffer bufferBlock(int position, ReadableByteBuffer data, int offset, int length) throws IOException {
+    PendingRun run = this.pendingRun;
+    if (run == null) {
+      run = this.pendingRun = new PendingRun(Math.max(1, WRITE_BUFFER_SIZE / this.blockSize) * this.blockSize);
+    }
+    if (run.blocks > 0 && (position != run.first + run.blocks || run.buffer.remaining() < length)) {
+      this.flushPendingRun();
+    }
+    if (run.blocks == 0) {
+      run.first = position;
+    }
+    final int start = run.buffer.position();
+    data.write(run, offset, length);
+    run.blocks++;
+    return run.buffer.duplicate().flip().position(start);
+  }
+
+  // called with the lock held before the output file is read or its completion state is saved
+  private void flushPendingRun() throws IOException {
+    final PendingRun run = this.pendingRun;
+    if (run == null || run.blocks == 0) {
+      return;
+    }
+    final ByteBuffer buffer = run.buffer.flip();
+    long offset = (long) run.first * this.blockSize;
+    while (buffer.hasRemaining()) {
+      offset += this.channel.write(buffer, offset);
+    }
+    buffer.clear();
+    run.blocks = 0;
+  }
+
+  /**
+   * Returns the index of rolling sums still needed for this file, built on first use from the blocks missing at that
+   * point and kept up to date as blocks complete, so that all input files are scanned against one shrinking index.
+   */
+  public synchronized MatcherIndex getMatcherIndex() {
+    if (this.matcherIndex == null) {
+      this.matcherIndex = new MatcherIndex(this.blockSums, this.seqMatches, this.completed);
+    }
+    return this.matcherIndex;
   }
 
   public List<ContentRange> getMissingRanges() {
@@ -173,10 +676,35 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     return Collections.unmodifiableList(b);
   }
 
-  public boolean isComplete() {
+  /**
+   * Plans the ranges to fetch, merging missing ranges separated by up to <code>maxGap</code> bytes of completed blocks.
+   * Refetching completed blocks is harmless: they are overwritten with identical content and not counted again.
+   *
+   * @param maxGap maximum number of completed bytes between missing ranges to fetch again
+   * @return
+   */
+  public RangePlan planMissingRanges(long maxGap) {
+    return RangePlan.merge(this.getMissingRanges(), maxGap);
+  }
+
+  public synchronized boolean isComplete() {
     return this.blocksRemaining == 0;
   }
 
+  /**
+   * Returns the number of blocks of the output file that are not complete yet.
+   *
+   * @return
+   */
+  public synchronized int getBlocksRemaining() {
+    return this.blocksRemaining;
+  }
+
+  @Override
+  public long getLength() {
+    return this.length;
+  }
+
   @Override
   public void receive(ContentRange range, InputStream in) throws IOException {
     if (range.first() % this.blockSize != 0) {
@@ -186,32 +714,261 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
       throw new RuntimeException("Invalid range received: last byte not block aligned");
     }
 
+    if (this.verifyBlocks) {
+      this.receiveBlocks(range, in);
+      return;
+    }
+    if (in instanceof SliceInputStream) {
+      this.receiveSlices(range, (SliceInputStream) in);
+    } else {
+      this.receiveStream(range, in);
+    }
+
+    final int first = (int) (range.first() / this.blockSize);
+    final int last =
+        (int) (range.last() + 1 == this.length ? this.completed.length - 1 : (range.last() + 1) / this.blockSize - 1);
+    this.markCompleted(first, last);
+    if (this.blockCache != null) {
+      this.cacheBlocks(first, last);
+    }
+  }
+
+  // the stream may be backed directly by the network connection, so transfer in chunks as bytes arrive. Ranges may
+  // start beyond the current end of the file, where transferFrom would not write anything, so write positionally.
+  private void receiveStream(ContentRange range, InputStream in) throws IOException {
     final ReadableByteChannel src = Channels.newChannel(in);
-    final long length = range.length();
-    long remaining = length;
+    final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(RECEIVE_BUFFER_SIZE, range.length()));
+    long position = range.first();
+    long remaining = range.length();
     do {
-      long transferred = this.channel.transferFrom(src, range.first(), length);
+      buffer.clear();
+      if (buffer.remaining() > remaining) {
+        buffer.limit((int) remaining);
+      }
+      if (src.read(buffer) == -1) {
+        throw new IOException("Premature end of stream for range " + range);
+      }
+      buffer.flip();
+      final int transferred = buffer.remaining();
+      this.writeReceived(buffer, position);
+      position += transferred;
       remaining -= transferred;
-      this.listener.transferred(transferred);
     } while (remaining > 0);
+  }
 
-    final int first = (int) (range.first() / this.blockSize);
-    final int last =
-        (int) (range.last() + 1 == this.length ? this.completed.length - 1 : (range.last() + 1) / this.blockSize - 1);
+  // the stream hands out slices of its own buffer, write them as they are instead of copying them into another buffer
+  private void receiveSlices(ContentRange range, SliceInputStream in) throws IOException {
+    long position = range.first();
+    long remaining = range.length();
+    do {
+      final ByteBuffer slice = in.readSlice((int) Math.min(Integer.MAX_VALUE, remaining));
+      if (slice == null) {
+        throw new IOException("Premature end of stream for range " + range);
+      }
+      final int transferred = slice.remaining();
+      this.writeReceived(slice, position);
+      position += transferred;
+      remaining -= transferred;
+    } while (remaining > 0);
+  }
+
+  /**
+   * Writes the received bytes at the given offset, skipping those of blocks already complete. A complete block may
+   * already be part of the SHA-1 of the output file, so it must not change, even if a merged range covers it again.
+   */
+  private void writeReceived(ByteBuffer data, long offset) throws IOException {
+    final int limit = data.limit();
+    while (data.hasRemaining()) {
+      final int position = (int) (offset / this.blockSize);
+      final int n = (int) Math.min(data.remaining(), this.blockEnd(position) - offset);
+      data.limit(data.position() + n);
+      if (this.isCompleted(position)) {
+        data.position(data.limit());
+      } else {
+        long o = offset;
+        while (data.hasRemaining()) {
+          o += this.channel.write(data, o);
+        }
+        this.listener.transferred(n);
+      }
+      data.limit(limit);
+      offset += n;
+    }
+  }
+
+  private synchronized boolean isCompleted(int position) {
+    return this.completed[position];
+  }
+
+  // reads the range block by block, so that each block can be checked before it is written. Full blocks that a slice
+  // stream holds in one piece are checked and written straight from its buffer, the others are copied.
+  private void receiveBlocks(ContentRange range, InputStream in) throws IOException {
+    final DirectMD4 md4 = new DirectMD4();
+    final byte[] checksum = new byte[DirectMD4.DIGEST_LENGTH];
+    final ByteBuffer block = ByteBuffer.allocate(this.blockSize);
+    long remaining = range.length();
+    for (int i = (int) (range.first() / this.blockSize); remaining > 0; i++) {
+      final int l = i == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
+      block.clear().limit(l);
+      if (in instanceof SliceInputStream && l == this.blockSize) {
+        final ByteBuffer slice = ((SliceInputStream) in).readSlice(l);
+        if (slice == null) {
+          throw new IOException("Premature end of stream for range " + range);
+        }
+        if (slice.remaining() == l) {
+          remaining -= l;
+          if (this.checksumMatches(i, slice, md4, checksum)) {
+            this.writeVerifiedBlock(i, slice.duplicate());
+            if (this.blockCache != null) {
+              this.cacheBlock(i, slice);
+            }
+          }
+          continue;
+        }
+        // the block straddles the end of the buffer of the stream
+        block.put(slice);
+      }
+      while (block.hasRemaining()) {
+        final int read = in.read(block.array(), block.position(), block.remaining());
+        if (read == -1) {
+          throw new IOException("Premature end of stream for range " + range);
+        }
+        block.position(block.position() + read);
+      }
+      remaining -= block.position();
+      // the last block is checksummed with zero padding
+      block.limit(block.capacity());
+      while (block.hasRemaining()) {
+        block.put((byte) 0);
+      }
+      if (this.checksumMatches(i, block.array(), md4)) {
+        this.writeVerifiedBlock(i, block.clear().limit(l));
+        if (this.blockCache != null) {
+          this.cacheBlock(i, block.clear());
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the blocks taken from the block cache, since one of them may be a different block that merely shares the
+   * truncated checksums of the block it was taken for.
+   */
+  private void evictCachedBlocks() {
+    for (int i = 0; i < this.cachedBlocks.length; i++) {
+      if (this.cachedBlocks[i]) {
+        try {
+          this.blockCache.remove(this.blockSize, this.blockSums.getRsum(i), this.blockSums.getChecksum(i));
+        } catch (IOException e) {
+          // the cache is best effort, the block may be evicted by the next run
+        }
+      }
+    }
+  }
+
+  // ranges may be received concurrently; the data is written positionally, only the bookkeeping is shared
+  private synchronized void markCompleted(int first, int last) throws IOException {
     for (int i = first; i <= last; i++) {
       if (!this.completed[i]) {
-        this.blocksRemaining--;
-        this.completed[i] = true;
+        this.complete(i, null);
+      }
+    }
+    this.stateChanged();
+  }
+
+  /**
+   * Marks the block complete. Callers hold the lock and have checked that the block is not complete yet.
+   *
+   * @param data content of the block from its position on, or null if it has to be read back from the output file
+   */
+  private void complete(int position, ByteBuffer data) throws IOException {
+    this.completed[position] = true;
+    this.blocksRemaining--;
+    if (this.matcherIndex != null) {
+      this.matcherIndex.blockCompleted(position);
+    }
+    if (position == this.sha1Blocks) {
+      this.updateSha1(data);
+    }
+  }
+
+  /**
+   * Extends the SHA-1 of the output file over the block just completed at its end, using the given data if available,
+   * and then over the blocks completed out of order after it, which are read back from the output file. This way close
+   * only needs to read blocks never reached, which are missing unless the file was completed by other means.
+   */
+  private void updateSha1(ByteBuffer data) throws IOException {
+    if (data != null) {
+      final int l = this.sha1Blocks == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
+      this.sha1Digest.update(data.duplicate().limit(data.position() + l));
+      this.sha1Blocks++;
+    }
+    while (this.sha1Blocks < this.completed.length && this.completed[this.sha1Blocks]) {
+      if (this.readBackBuffer == null) {
+        this.readBackBuffer = ByteBuffer.allocate(this.blockSize);
+      }
+      final int l = this.sha1Blocks == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
+      if (this.zeroBlocks[this.sha1Blocks]) {
+        // possibly not written
+        this.sha1Digest.update(this.zeroBlock.array(), 0, l);
+        this.sha1Blocks++;
+        continue;
+      }
+      this.flushPendingRun();
+      if (!this.read(this.channel, this.sha1Blocks, this.readBackBuffer)) {
+        throw new IOException("Failed to read back block at position " + this.sha1Blocks);
       }
+      this.sha1Digest.update(this.readBackBuffer.array(), 0, l);
+      this.sha1Blocks++;
+    }
+    if (this.sha1Blocks == this.completed.length) {
+      this.calculatedSha1 = ZsyncUtil.toHexString(ByteBuffer.wrap(this.sha1Digest.digest()));
+    }
+  }
+
+  // called with the lock held after all writes
+  private String computeSha1() throws IOException {
+    if (this.calculatedSha1 != null) {
+      return this.calculatedSha1;
     }
+    // incomplete, the remainder is included to report the actual checksum
+    final long start = Math.min((long) this.sha1Blocks * this.blockSize, this.length);
+    ZsyncUtil.update(this.sha1Digest, new PositionalReadableByteChannel(this.channel, start, this.channel.size()));
+    return ZsyncUtil.toHexString(ByteBuffer.wrap(this.sha1Digest.digest()));
   }
 
   @Override
   public void close() throws IOException {
     try {
-      this.channel.position(0); // reset channel to beginning to compute full SHA1
-      String calculatedSha1 = ZsyncUtil.computeSha1(this.channel);
+      final boolean complete = this.isComplete();
+      if (this.statePath != null && !complete) {
+        // keep progress for a later run
+        synchronized (this) {
+          this.saveState();
+        }
+      }
+      final String calculatedSha1;
+      synchronized (this) {
+        this.flushPendingRun();
+        // a longer file left behind by an earlier run may be reused as the temporary output file
+        if (this.channel.size() > this.length) {
+          this.channel.truncate(this.length);
+        } else if (this.blocksRemaining == 0 && this.channel.size() < this.length) {
+          // trailing blocks of zeros were left unwritten
+          this.channel.write(ByteBuffer.allocate(1), this.length - 1);
+        }
+        calculatedSha1 = this.computeSha1();
+      }
       if (!this.sha1.equals(calculatedSha1)) {
+        if (this.statePath != null && complete) {
+          // every block was accounted for, so the recorded state cannot be trusted
+          Files.deleteIfExists(this.statePath);
+        }
+        // only a complete file tells that a cached block was wrong, an incomplete one fails anyway
+        if (complete && this.cachedBlocks != null) {
+          this.evictCachedBlocks();
+          throw new BlockCacheValidationIOException(this.sha1, calculatedSha1);
+        }
         throw new ChecksumValidationIOException(this.sha1, calculatedSha1);
       }
       try {
@@ -220,10 +977,45 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
         Files.move(this.tempPath, this.path, REPLACE_EXISTING);
       }
       Files.setLastModifiedTime(this.path, fromMillis(this.mtime));
+      if (this.statePath != null) {
+        Files.deleteIfExists(this.statePath);
+      }
     } finally {
       this.channel.close();
       this.listener.close();
     }
   }
 
+  /**
+   * Consecutive blocks written by the block matchers, held back to be written to the output file at once. Block data is
+   * copied in through the {@link WritableByteChannel} interface the matchers' buffers write to.
+   */
+  private static final class PendingRun implements WritableByteChannel {
+
+    final ByteBuffer buffer;
+    int first;
+    int blocks;
+
+    PendingRun(int capacity) {
+      this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      final int n = src.remaining();
+      this.buffer.put(src);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+  }
+
 }
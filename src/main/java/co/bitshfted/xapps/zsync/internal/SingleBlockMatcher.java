@@ -26,14 +26,9 @@
  */
 package co.bitshfted.xapps.zsync.internal;
 
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
 import co.bitshfted.xapps.zsync.internal.util.ReadableByteBuffer;
-import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
 
-import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
-
-import static co.bitshfted.xapps.zsync.internal.BlockSum.getRsum;
 import static co.bitshfted.xapps.zsync.internal.SingleBlockMatcher.State.*;
 
 public class SingleBlockMatcher extends BlockMatcher {
@@ -43,18 +38,18 @@ public class SingleBlockMatcher extends BlockMatcher {
   }
 
   private final int blockSize;
-  private final Set<Integer> rsumHashSet;
+  private final MatcherIndex index;
 
   private State state;
   private MutableBlockSum blockSum;
   private byte firstByte;
 
-  public SingleBlockMatcher(ControlFile controlFile) {
+  public SingleBlockMatcher(ControlFile controlFile, MatcherIndex index) {
     final Header header = controlFile.getHeader();
     this.blockSize = header.getBlocksize();
-    this.rsumHashSet = controlFile.getBlockSums().stream().map(bsum -> getRsum.apply(bsum)).collect(Collectors.toUnmodifiableSet());
+    this.index = index;
     this.state = INIT;
-    this.blockSum = new MutableBlockSum(ZsyncUtil.newMD4(), this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
+    this.blockSum = new MutableBlockSum(new DirectMD4(), this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
   }
 
   @Override
@@ -80,12 +75,12 @@ public class SingleBlockMatcher extends BlockMatcher {
 
     final int r = this.blockSum.rsum.toInt();
     // cheap negative check followed by more expensive positive check
-    if (this.rsumHashSet.contains(r)) {
+    if (this.index.containsRsum(r)) {
       // only compute strong checksum if weak matched some block
       this.blockSum.checksum.setChecksum(buffer);
-      final List<Integer> matches = targetFile.getPositions(this.blockSum);
-      if (!matches.isEmpty()) {
-        for (Integer position : matches) {
+      final int[] matches = targetFile.getPositions(this.blockSum);
+      if (matches.length > 0) {
+        for (int position : matches) {
           targetFile.writeBlock(position, buffer);
         }
         this.state = MATCHED;
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * MD4 for block checksums that hashes straight from byte arrays and buffers, without the
+ * {@link java.security.MessageDigest} layer. Words are read from the input in place and nothing is allocated per call;
+ * only input that does not fill a 64 byte block is staged in an internal buffer. Not thread safe.
+ * <p>
+ * Implements {@link WritableByteChannel}, so that it can be passed to {@link ReadableByteBuffer#write}, in which case
+ * it is always open and closing it does nothing.
+ */
+public class DirectMD4 implements WritableByteChannel {
+
+  public static final int DIGEST_LENGTH = 16;
+
+  private static final int BLOCK_LENGTH = 64;
+
+  private final byte[] buffer = new byte[BLOCK_LENGTH];
+  private final byte[] output = new byte[DIGEST_LENGTH];
+
+  private int a;
+  private int b;
+  private int c;
+  private int d;
+  private long length;
+
+  public DirectMD4() {
+    this.reset();
+  }
+
+  public void reset() {
+    this.a = 0x67452301;
+    this.b = 0xefcdab89;
+    this.c = 0x98badcfe;
+    this.d = 0x10325476;
+    this.length = 0;
+  }
+
+  public void update(byte[] in, int offset, int length) {
+    int pos = (int) (this.length & (BLOCK_LENGTH - 1));
+    this.length += length;
+    if (pos > 0) {
+      final int n = Math.min(length, BLOCK_LENGTH - pos);
+      System.arraycopy(in, offset, this.buffer, pos, n);
+      offset += n;
+      length -= n;
+      if (pos + n < BLOCK_LENGTH) {
+        return;
+      }
+      this.process(this.buffer, 0);
+    }
+    for (; length >= BLOCK_LENGTH; offset += BLOCK_LENGTH, length -= BLOCK_LENGTH) {
+      this.process(in, offset);
+    }
+    System.arraycopy(in, offset, this.buffer, 0, length);
+  }
+
+  /**
+   * Updates the digest with the remaining bytes of the given buffer, advancing its position to its limit
+   */
+  public void update(ByteBuffer in) {
+    final int remaining = in.remaining();
+    if (in.hasArray()) {
+      this.update(in.array(), in.arrayOffset() + in.position(), remaining);
+      in.position(in.limit());
+      return;
+    }
+    int offset = in.position();
+    int length = remaining;
+    int pos = (int) (this.length & (BLOCK_LENGTH - 1));
+    this.length += length;
+    if (pos > 0) {
+      final int n = Math.min(length, BLOCK_LENGTH - pos);
+      in.get(this.buffer, pos, n);
+      offset += n;
+      length -= n;
+      if (pos + n < BLOCK_LENGTH) {
+        return;
+      }
+      this.process(this.buffer, 0);
+    }
+    final boolean swap = in.order() == ByteOrder.BIG_ENDIAN;
+    for (; length >= BLOCK_LENGTH; offset += BLOCK_LENGTH, length -= BLOCK_LENGTH) {
+      if (swap) {
+        this.compress(Integer.reverseBytes(in.getInt(offset)), Integer.reverseBytes(in.getInt(offset + 4)),
+            Integer.reverseBytes(in.getInt(offset + 8)), Integer.reverseBytes(in.getInt(offset + 12)),
+            Integer.reverseBytes(in.getInt(offset + 16)), Integer.reverseBytes(in.getInt(offset + 20)),
+            Integer.reverseBytes(in.getInt(offset + 24)), Integer.reverseBytes(in.getInt(offset + 28)),
+            Integer.reverseBytes(in.getInt(offset + 32)), Integer.reverseBytes(in.getInt(offset + 36)),
+            Integer.reverseBytes(in.getInt(offset + 40)), Integer.reverseBytes(in.getInt(offset + 44)),
+            Integer.reverseBytes(in.getInt(offset + 48)), Integer.reverseBytes(in.getInt(offset + 52)),
+            Integer.reverseBytes(in.getInt(offset + 56)), Integer.reverseBytes(in.getInt(offset + 60)));
+      } else {
+        this.compress(in.getInt(offset), in.getInt(offset + 4), in.getInt(offset + 8), in.getInt(offset + 12),
+            in.getInt(offset + 16), in.getInt(offset + 20), in.getInt(offset + 24), in.getInt(offset + 28),
+            in.getInt(offset + 32), in.getInt(offset + 36), in.getInt(offset + 40), in.getInt(offset + 44),
+            in.getInt(offset + 48), in.getInt(offset + 52), in.getInt(offset + 56), in.getInt(offset + 60));
+      }
+    }
+    in.position(offset);
+    in.get(this.buffer, 0, length);
+  }
+
+  /**
+   * Completes the digest, writes its leading <code>length</code> bytes into the given array and resets this digest
+   */
+  public void finish(byte[] out, int offset, int length) {
+    final int pos = (int) (this.length & (BLOCK_LENGTH - 1));
+    final long bits = this.length << 3;
+    this.buffer[pos] = (byte) 0x80;
+    if (pos >= BLOCK_LENGTH - 8) {
+      Arrays.fill(this.buffer, pos + 1, BLOCK_LENGTH, (byte) 0);
+      this.process(this.buffer, 0);
+      Arrays.fill(this.buffer, 0, BLOCK_LENGTH - 8, (byte) 0);
+    } else {
+      Arrays.fill(this.buffer, pos + 1, BLOCK_LENGTH - 8, (byte) 0);
+    }
+    putInt(this.buffer, BLOCK_LENGTH - 8, (int) bits);
+    putInt(this.buffer, BLOCK_LENGTH - 4, (int) (bits >>> 32));
+    this.process(this.buffer, 0);
+
+    putInt(this.output, 0, this.a);
+    putInt(this.output, 4, this.b);
+    putInt(this.output, 8, this.c);
+    putInt(this.output, 12, this.d);
+    System.arraycopy(this.output, 0, out, offset, Math.min(length, DIGEST_LENGTH));
+    this.reset();
+  }
+
+  /**
+   * Computes the digest of the given region and writes its leading <code>outLength</code> bytes into the given output
+   * array
+   */
+  public void digest(byte[] in, int offset, int length, byte[] out, int outOffset, int outLength) {
+    this.reset();
+    this.update(in, offset, length);
+    this.finish(out, outOffset, outLength);
+  }
+
+  /**
+   * Computes the digest of the given region and returns it in an array owned by this instance, which is overwritten by
+   * the next digest computed
+   */
+  public byte[] digest(byte[] in, int offset, int length) {
+    this.digest(in, offset, length, this.output, 0, DIGEST_LENGTH);
+    return this.output;
+  }
+
+  /**
+   * Updates the digest with the given buffer. The returned bytes written is always equal to the remaining bytes in the
+   * buffer.
+   */
+  @Override
+  public int write(ByteBuffer src) {
+    final int r = src.remaining();
+    this.update(src);
+    return r;
+  }
+
+  /**
+   * Always open
+   */
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  /**
+   * Doesn't close anything
+   */
+  @Override
+  public void close() {}
+
+  private void process(byte[] in, int offset) {
+    this.compress(getInt(in, offset), getInt(in, offset + 4), getInt(in, offset + 8), getInt(in, offset + 12),
+        getInt(in, offset + 16), getInt(in, offset + 20), getInt(in, offset + 24), getInt(in, offset + 28),
+        getInt(in, offset + 32), getInt(in, offset + 36), getInt(in, offset + 40), getInt(in, offset + 44),
+        getInt(in, offset + 48), getInt(in, offset + 52), getInt(in, offset + 56), getInt(in, offset + 60));
+  }
+
+  private void compress(int x0, int x1, int x2, int x3, int x4, int x5, int x6, int x7, int x8, int x9, int x10,
+      int x11, int x12, int x13, int x14, int x15) {
+    int a = this.a;
+    int b = this.b;
+    int c = this.c;
+    int d = this.d;
+
+    a = f(a, b, c, d, x0, 3);
+    d = f(d, a, b, c, x1, 7);
+    c = f(c, d, a, b, x2, 11);
+    b = f(b, c, d, a, x3, 19);
+    a = f(a, b, c, d, x4, 3);
+    d = f(d, a, b, c, x5, 7);
+    c = f(c, d, a, b, x6, 11);
+    b = f(b, c, d, a, x7, 19);
+    a = f(a, b, c, d, x8, 3);
+    d = f(d, a, b, c, x9, 7);
+    c = f(c, d, a, b, x10, 11);
+    b = f(b, c, d, a, x11, 19);
+    a = f(a, b, c, d, x12, 3);
+    d = f(d, a, b, c, x13, 7);
+    c = f(c, d, a, b, x14, 11);
+    b = f(b, c, d, a, x15, 19);
+
+    a = g(a, b, c, d, x0, 3);
+    d = g(d, a, b, c, x4, 5);
+    c = g(c, d, a, b, x8, 9);
+    b = g(b, c, d, a, x12, 13);
+    a = g(a, b, c, d, x1, 3);
+    d = g(d, a, b, c, x5, 5);
+    c = g(c, d, a, b, x9, 9);
+    b = g(b, c, d, a, x13, 13);
+    a = g(a, b, c, d, x2, 3);
+    d = g(d, a, b, c, x6, 5);
+    c = g(c, d, a, b, x10, 9);
+    b = g(b, c, d, a, x14, 13);
+    a = g(a, b, c, d, x3, 3);
+    d = g(d, a, b, c, x7, 5);
+    c = g(c, d, a, b, x11, 9);
+    b = g(b, c, d, a, x15, 13);
+
+    a = h(a, b, c, d, x0, 3);
+    d = h(d, a, b, c, x8, 9);
+    c = h(c, d, a, b, x4, 11);
+    b = h(b, c, d, a, x12, 15);
+    a = h(a, b, c, d, x2, 3);
+    d = h(d, a, b, c, x10, 9);
+    c = h(c, d, a, b, x6, 11);
+    b = h(b, c, d, a, x14, 15);
+    a = h(a, b, c, d, x1, 3);
+    d = h(d, a, b, c, x9, 9);
+    c = h(c, d, a, b, x5, 11);
+    b = h(b, c, d, a, x13, 15);
+    a = h(a, b, c, d, x3, 3);
+    d = h(d, a, b, c, x11, 9);
+    c = h(c, d, a, b, x7, 11);
+    b = h(b, c, d, a, x15, 15);
+
+    this.a += a;
+    this.b += b;
+    this.c += c;
+    this.d += d;
+  }
+
+  // little endian, plain loads rather than a byte array view var handle, which C2 on JDK 17 miscompiles in loops
+  private static int getInt(byte[] b, int offset) {
+    return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | b[offset + 3] << 24;
+  }
+
+  // little endian
+  private static void putInt(byte[] b, int offset, int value) {
+    b[offset] = (byte) value;
+    b[offset + 1] = (byte) (value >>> 8);
+    b[offset + 2] = (byte) (value >>> 16);
+    b[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private static int f(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + ((b & c) | (~b & d)) + x, s);
+  }
+
+  private static int g(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + x + 0x5a827999, s);
+  }
+
+  private static int h(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + (b ^ c ^ d) + x + 0x6ed9eba1, s);
+  }
+}
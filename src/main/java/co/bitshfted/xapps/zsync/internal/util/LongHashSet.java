@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of primitive long values with linear probing. Unlike a {@code Set<Long>}, lookups
+ * neither box the key nor allocate, which matters for the rolling checksum lookup performed for every byte of input.
+ * <p>
+ * Removing a value marks its slot instead of moving other values, so a lookup racing with a removal never misses a
+ * value still in the set. The set is not thread safe otherwise.
+ */
+public class LongHashSet {
+
+  private static final float LOAD_FACTOR = 0.5f;
+
+  // zero marks a free slot, so it is tracked separately
+  private boolean containsZero;
+  private long[] keys;
+  private boolean[] removed;
+  private int mask;
+  private int size;
+  // slots holding a value, including removed ones
+  private int used;
+
+  public LongHashSet() {
+    this(16);
+  }
+
+  public LongHashSet(int expectedSize) {
+    ZsyncUtil.checkArgument(expectedSize >= 0, "expectedSize must not be negative");
+    this.allocate(tableSize(expectedSize));
+  }
+
+  /**
+   * Adds the given value to the set.
+   *
+   * @return true if the set did not already contain the value
+   */
+  public boolean add(long value) {
+    if (value == 0) {
+      if (this.containsZero) {
+        return false;
+      }
+      this.containsZero = true;
+      this.size++;
+      return true;
+    }
+    int i = hash(value) & this.mask;
+    for (; this.keys[i] != 0; i = (i + 1) & this.mask) {
+      if (this.keys[i] == value) {
+        if (!this.removed[i]) {
+          return false;
+        }
+        this.removed[i] = false;
+        this.size++;
+        return true;
+      }
+    }
+    this.keys[i] = value;
+    this.size++;
+    if (++this.used > this.keys.length * LOAD_FACTOR) {
+      this.rehash(tableSize(this.size));
+    }
+    return true;
+  }
+
+  /**
+   * Removes the given value from the set.
+   *
+   * @return true if the set contained the value
+   */
+  public boolean remove(long value) {
+    if (value == 0) {
+      if (!this.containsZero) {
+        return false;
+      }
+      this.containsZero = false;
+      this.size--;
+      return true;
+    }
+    final long[] keys = this.keys;
+    for (int i = hash(value) & this.mask;; i = (i + 1) & this.mask) {
+      final long key = keys[i];
+      if (key == value) {
+        if (this.removed[i]) {
+          return false;
+        }
+        this.removed[i] = true;
+        this.size--;
+        return true;
+      }
+      if (key == 0) {
+        return false;
+      }
+    }
+  }
+
+  public boolean contains(long value) {
+    if (value == 0) {
+      return this.containsZero;
+    }
+    final long[] keys = this.keys;
+    for (int i = hash(value) & this.mask;; i = (i + 1) & this.mask) {
+      final long key = keys[i];
+      if (key == value) {
+        return !this.removed[i];
+      }
+      if (key == 0) {
+        return false;
+      }
+    }
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(this.keys, 0);
+    Arrays.fill(this.removed, false);
+    this.containsZero = false;
+    this.size = 0;
+    this.used = 0;
+  }
+
+  private void allocate(int capacity) {
+    this.keys = new long[capacity];
+    this.removed = new boolean[capacity];
+    this.mask = capacity - 1;
+  }
+
+  // drops removed values, which may leave the table at the same size
+  private void rehash(int capacity) {
+    final long[] old = this.keys;
+    final boolean[] oldRemoved = this.removed;
+    this.allocate(capacity);
+    this.used = 0;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i] != 0 && !oldRemoved[i]) {
+        insert(this.keys, this.mask, old[i]);
+        this.used++;
+      }
+    }
+  }
+
+  private static void insert(long[] keys, int mask, long value) {
+    int i = hash(value) & mask;
+    while (keys[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = value;
+  }
+
+  private static int tableSize(int expectedSize) {
+    final long min = Math.max(2, (long) Math.ceil(expectedSize / LOAD_FACTOR) + 1);
+    ZsyncUtil.checkArgument(min <= 1 << 30, "expectedSize too large");
+    return Integer.highestOneBit((int) min - 1) << 1;
+  }
+
+  private static int hash(long value) {
+    final long h = value * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Rolling window over a region of a file that reads directly from memory mapped sections of the file
+ * rather than copying the content into a heap buffer. The region can be followed by a number of
+ * zeros, which are not read from anywhere but returned virtually once the window moves past the end
+ * of the region.
+ * <p>
+ * Sections of at most mapSize bytes are mapped one at a time. When the window moves past the end of
+ * the current section, the next section is mapped starting at the current window position. Mapped
+ * sections are released by the garbage collector, so the file may remain mapped for a while after
+ * the buffer is no longer used.
+ */
+public class MappedRollingBuffer implements RollingReadableByteBuffer {
+
+  // the file this buffer provides a view over
+  private final FileChannel channel;
+  // end of the region of the file
+  private final long end;
+  // end of the region including virtual zero padding
+  private final long paddedEnd;
+  // length of window
+  private final int length;
+  // maximum number of bytes to map at once
+  private final int mapSize;
+  // notified of bytes as they are mapped
+  private final TransferListener listener;
+
+  // currently mapped section [mapStart, mapEnd) of the file
+  private MappedByteBuffer mapped;
+  private long mapStart;
+  private long mapEnd;
+  // file position of the first byte in the window
+  private long position;
+  // source of zeros written for the padding, allocated on first use
+  private ByteBuffer zeros;
+
+  /**
+   * Constructs a rolling buffer over the given region of the file channel and maps the first
+   * section of the region. If the region including the padding is smaller than a full window, an
+   * IllegalArgumentException is thrown.
+   *
+   * @param channel File to roll over
+   * @param start Position of the first byte of the region
+   * @param end Position after the last byte of the region
+   * @param padding Number of zeros to append to the region
+   * @param windowSize Size of the window into the region, must be positive.
+   * @param mapSize Maximum number of bytes to map at once. Must be greater than equal to twice the
+   *        window size.
+   * @param listener Notified of the number of bytes as sections are mapped
+   * @throws IOException If mapping the file fails
+   */
+  public MappedRollingBuffer(FileChannel channel, long start, long end, int padding, int windowSize, int mapSize,
+      TransferListener listener) throws IOException {
+    if (windowSize <= 0 || mapSize <= 0) {
+      throw new IllegalArgumentException("window and map size must be positive integers");
+    }
+    if (mapSize < 2 * windowSize) {
+      throw new IllegalArgumentException("Map size must be at least twice as large as window size");
+    }
+    if (channel == null) {
+      throw new IllegalArgumentException("channel must not be null");
+    }
+    if (start < 0 || end < start || padding < 0) {
+      throw new IllegalArgumentException("invalid region [" + start + ", " + end + ") with padding " + padding);
+    }
+    if (end - start + padding < windowSize) {
+      throw new IllegalArgumentException("Insufficient bytes available (" + (end - start + padding)
+          + ") to satisfy window size " + windowSize);
+    }
+    this.channel = channel;
+    this.end = end;
+    this.paddedEnd = end + padding;
+    this.length = windowSize;
+    this.mapSize = mapSize;
+    this.listener = listener;
+    this.position = start;
+    this.mapEnd = start;
+    map(start);
+  }
+
+  @Override
+  public boolean advance(int bytes) throws IOException {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Cannot advance window backwards");
+    }
+    if (bytes > this.length) {
+      throw new IllegalArgumentException("Cannot advance window beyond current end position");
+    }
+    final long next = this.position + bytes;
+    if (next + this.length > this.paddedEnd) {
+      return false;
+    }
+    this.position = next;
+    // window no longer within mapped section: map next section unless the window reached the padding
+    if (next + this.length > this.mapEnd && this.mapEnd < this.end) {
+      map(next);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the length of the window
+   */
+  @Override
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * Returns the byte at the given index within the current window
+   */
+  @Override
+  public byte get(int i) {
+    if (i < 0 || i >= this.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    final long p = this.position + i;
+    // anything past the mapped section is padding, since the window always lies within the section otherwise
+    return p < this.mapEnd ? this.mapped.get((int) (p - this.mapStart)) : 0;
+  }
+
+  /**
+   * Writes the current window fully to the given channel
+   */
+  @Override
+  public void write(WritableByteChannel channel) throws IOException {
+    write(channel, 0, this.length);
+  }
+
+  /**
+   * Writes length bytes from the current window starting at the given offset into the channel. The
+   * bytes are written straight from the mapped section of the file.
+   */
+  @Override
+  public void write(WritableByteChannel channel, int offset, int length) throws IOException {
+    if (offset < 0 || offset >= this.length) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset);
+    }
+    if (offset + length > this.length) {
+      throw new IndexOutOfBoundsException("Invalid length " + length);
+    }
+    final long from = this.position + offset;
+    final long to = from + length;
+    final long mappedTo = Math.min(to, this.mapEnd);
+    if (from < mappedTo) {
+      final ByteBuffer src = this.mapped.duplicate();
+      src.position((int) (from - this.mapStart)).limit((int) (mappedTo - this.mapStart));
+      do {
+        channel.write(src);
+      } while (src.hasRemaining());
+    }
+    final long padding = to - Math.max(from, mappedTo);
+    if (padding > 0) {
+      if (this.zeros == null) {
+        this.zeros = ByteBuffer.allocate(this.length);
+      }
+      this.zeros.clear().limit((int) padding);
+      do {
+        channel.write(this.zeros);
+      } while (this.zeros.hasRemaining());
+    }
+  }
+
+  /**
+   * Maps the next section of the region starting at the given position.
+   *
+   * @param from file position at which to start the section, must not be past the end of the
+   *        previously mapped section
+   * @throws IOException
+   */
+  private void map(long from) throws IOException {
+    final long size = Math.min(this.mapSize, this.end - from);
+    this.mapped = size > 0 ? this.channel.map(READ_ONLY, from, size) : null;
+    if (this.listener != null && from + size > this.mapEnd) {
+      this.listener.transferred(from + size - this.mapEnd);
+    }
+    this.mapStart = from;
+    this.mapEnd = from + size;
+  }
+
+}
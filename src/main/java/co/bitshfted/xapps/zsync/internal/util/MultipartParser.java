@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import co.bitshfted.xapps.zsync.http.ContentRange;
+
+/**
+ * Incremental parser for multipart/byteranges response bodies. The body is read into a single buffer, delimiters are
+ * located with a Boyer-Moore-Horspool search and headers are matched in place, so only the value of the Content-Range
+ * header of each part is decoded. The payload of each part is exposed as a {@link SliceInputStream} over the same
+ * buffer.
+ */
+class MultipartParser {
+
+  private static final byte[] CONTENT_RANGE = "content-range".getBytes(ISO_8859_1);
+
+  private final InputStream in;
+  private final byte[] delimiter;
+  private final int[] shifts;
+  private ByteBuffer buffer;
+  private long payloadRemaining;
+  private boolean done;
+
+  /**
+   * @param in multipart body
+   * @param boundary boundary parameter of the multipart media type
+   * @param bufferSize initial size of the buffer, grown if a single header line does not fit
+   */
+  MultipartParser(InputStream in, byte[] boundary, int bufferSize) {
+    this.in = in;
+    this.delimiter = new byte[boundary.length + 2];
+    this.delimiter[0] = '-';
+    this.delimiter[1] = '-';
+    System.arraycopy(boundary, 0, this.delimiter, 2, boundary.length);
+    this.shifts = shifts(this.delimiter);
+    this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 2 * this.delimiter.length));
+    this.buffer.flip();
+  }
+
+  /**
+   * Advances to the next part, skipping what is left of the payload of the current one.
+   *
+   * @return the range of the next part, or null if the closing delimiter has been reached
+   * @throws IOException if the body is malformed or ends prematurely
+   */
+  ContentRange nextPart() throws IOException {
+    if (this.done) {
+      return null;
+    }
+    while (this.payloadRemaining > 0) {
+      this.skip(this.payloadRemaining);
+    }
+    // anything up to the delimiter is either the preamble or the line break preceding the delimiter
+    this.buffer.position(this.find());
+    this.require(this.delimiter.length + 2);
+    this.buffer.position(this.buffer.position() + this.delimiter.length);
+    final byte b1 = this.buffer.get();
+    final byte b2 = this.buffer.get();
+    if (b1 == '-' && b2 == '-') {
+      // closing delimiter, the epilogue is ignored
+      this.done = true;
+      return null;
+    }
+    if (b1 != '\r' || b2 != '\n') {
+      throw new IOException("Missing control line feed");
+    }
+    ContentRange range = null;
+    int length;
+    while ((length = this.nextLine()) > 0) {
+      final int start = this.buffer.position();
+      if (startsWithIgnoreCase(this.buffer, start, length, CONTENT_RANGE)) {
+        if (range != null) {
+          throw new IOException("Multiple content range headers in multipart");
+        }
+        range = this.parseContentRange(start, length);
+      }
+      this.buffer.position(start + length + 2);
+    }
+    this.buffer.position(this.buffer.position() + 2);
+    if (range == null) {
+      throw new IOException("Content-Range header missing in multipart");
+    }
+    this.payloadRemaining = range.length();
+    return range;
+  }
+
+  /**
+   * Returns a stream over the payload of the current part
+   */
+  SliceInputStream payload() {
+    return new SliceInputStream() {
+      @Override
+      public ByteBuffer readSlice(int max) throws IOException {
+        return MultipartParser.this.readSlice(max);
+      }
+    };
+  }
+
+  private ByteBuffer readSlice(int max) throws IOException {
+    if (this.payloadRemaining == 0) {
+      return null;
+    }
+    if (!this.buffer.hasRemaining() && !this.fill()) {
+      throw new IOException("Body ended before end of multipart payload");
+    }
+    final int n = (int) Math.min(Math.min(max, this.buffer.remaining()), this.payloadRemaining);
+    final ByteBuffer slice = this.buffer.slice();
+    slice.limit(n);
+    this.buffer.position(this.buffer.position() + n);
+    this.payloadRemaining -= n;
+    return slice;
+  }
+
+  private void skip(long n) throws IOException {
+    final ByteBuffer slice = this.readSlice((int) Math.min(n, Integer.MAX_VALUE));
+    if (slice == null) {
+      throw new IOException("Body ended before end of multipart payload");
+    }
+  }
+
+  /**
+   * Returns the length of the next header line starting at the current position, excluding the line break, reading
+   * more input as needed
+   */
+  private int nextLine() throws IOException {
+    int from = this.buffer.position();
+    while (true) {
+      for (int i = from; i < this.buffer.limit() - 1; i++) {
+        if (this.buffer.get(i) == '\r' && this.buffer.get(i + 1) == '\n') {
+          return i - this.buffer.position();
+        }
+      }
+      from = Math.max(this.buffer.position(), this.buffer.limit() - 1) - this.buffer.position();
+      if (!this.fill()) {
+        throw new IOException("Body ended before end of multipart headers");
+      }
+      from += this.buffer.position();
+    }
+  }
+
+  private ContentRange parseContentRange(int start, int length) throws IOException {
+    int i = start + CONTENT_RANGE.length;
+    final int end = start + length;
+    while (i < end && (this.buffer.get(i) == ' ' || this.buffer.get(i) == '\t')) {
+      i++;
+    }
+    if (i == end || this.buffer.get(i) != ':') {
+      throw new IOException("Invalid Content-Range header in multipart");
+    }
+    i++;
+    while (i < end && (this.buffer.get(i) == ' ' || this.buffer.get(i) == '\t')) {
+      i++;
+    }
+    final String value = new String(this.buffer.array(), this.buffer.arrayOffset() + i, end - i, ISO_8859_1);
+    try {
+      return ZsyncClient.parseContentRange(value);
+    } catch (ParseException e) {
+      throw new IOException("Failed to parse Content-Range header " + value, e);
+    }
+  }
+
+  /**
+   * Returns the index of the next delimiter in the buffer, reading more input as needed
+   */
+  private int find() throws IOException {
+    final int m = this.delimiter.length;
+    while (true) {
+      final int limit = this.buffer.limit();
+      int i = this.buffer.position();
+      while (i + m <= limit) {
+        int j = m - 1;
+        while (j >= 0 && this.buffer.get(i + j) == this.delimiter[j]) {
+          j--;
+        }
+        if (j < 0) {
+          return i;
+        }
+        i += this.shifts[this.buffer.get(i + m - 1) & 0xff];
+      }
+      // keep the tail that may be the start of a delimiter
+      this.buffer.position(Math.max(this.buffer.position(), limit - m + 1));
+      if (!this.fill()) {
+        throw new IOException("Body ended before finding multipart delimiter");
+      }
+    }
+  }
+
+  /**
+   * Makes sure the given number of bytes is buffered
+   */
+  private void require(int n) throws IOException {
+    while (this.buffer.remaining() < n) {
+      if (!this.fill()) {
+        throw new IOException("Body ended before end of multipart delimiter");
+      }
+    }
+  }
+
+  /**
+   * Reads more input into the buffer, compacting it first and growing it if it is full
+   *
+   * @return false if the end of the body has been reached
+   */
+  private boolean fill() throws IOException {
+    if (this.buffer.position() == 0 && this.buffer.limit() == this.buffer.capacity()) {
+      this.buffer = ByteBuffer.allocate(this.buffer.capacity() * 2).put(this.buffer);
+    } else {
+      this.buffer.compact();
+    }
+    final int read = this.in.read(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(),
+        this.buffer.remaining());
+    if (read > 0) {
+      this.buffer.position(this.buffer.position() + read);
+    }
+    this.buffer.flip();
+    return read != -1;
+  }
+
+  private static boolean startsWithIgnoreCase(ByteBuffer buffer, int start, int length, byte[] lowerCasePrefix) {
+    if (length < lowerCasePrefix.length) {
+      return false;
+    }
+    for (int i = 0; i < lowerCasePrefix.length; i++) {
+      final byte b = buffer.get(start + i);
+      if ((b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != lowerCasePrefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] shifts(byte[] pattern) {
+    final int[] shifts = new int[256];
+    Arrays.fill(shifts, pattern.length);
+    for (int i = 0; i < pattern.length - 1; i++) {
+      shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+    }
+    return shifts;
+  }
+}
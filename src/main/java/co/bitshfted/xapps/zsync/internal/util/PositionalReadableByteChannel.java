@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a region of a file channel using positional reads. Since the position of the underlying
+ * channel is never modified, multiple instances can read different regions of the same channel
+ * concurrently. Closing this channel does not close the underlying file channel.
+ */
+public class PositionalReadableByteChannel implements ReadableByteChannel {
+
+  private final FileChannel channel;
+  private final long end;
+  private long position;
+  private boolean open;
+
+  /**
+   * Constructs a channel over the given region of the file channel
+   *
+   * @param channel Channel to read from
+   * @param start Position of the first byte to read
+   * @param end Position after the last byte to read
+   */
+  public PositionalReadableByteChannel(FileChannel channel, long start, long end) {
+    if (channel == null) {
+      throw new IllegalArgumentException("underlying channel must not be null");
+    }
+    if (start < 0 || end < start) {
+      throw new IllegalArgumentException("invalid region [" + start + ", " + end + ")");
+    }
+    this.channel = channel;
+    this.position = start;
+    this.end = end;
+    this.open = true;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return this.open && this.channel.isOpen();
+  }
+
+  /**
+   * Marks this channel closed, leaves the underlying channel open
+   */
+  @Override
+  public void close() throws IOException {
+    this.open = false;
+  }
+
+  /**
+   * Reads up to the end of the region into the buffer. Returns -1 once the end of the region or the
+   * end of the underlying file has been reached.
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    final long available = this.end - this.position;
+    if (available <= 0) {
+      return -1;
+    }
+    final int limit = dst.limit();
+    if (dst.remaining() > available) {
+      dst.limit(dst.position() + (int) available);
+    }
+    try {
+      final int read = this.channel.read(dst, this.position);
+      if (read > 0) {
+        this.position += read;
+      }
+      return read;
+    } finally {
+      dst.limit(limit);
+    }
+  }
+
+}
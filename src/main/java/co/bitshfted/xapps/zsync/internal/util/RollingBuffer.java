@@ -36,7 +36,7 @@ import java.nio.channels.WritableByteChannel;
  * @author bbusjaeger
  *
  */
-public class RollingBuffer implements ReadableByteBuffer {
+public class RollingBuffer implements RollingReadableByteBuffer {
 
   // the source this buffer provides a view over
   private final ReadableByteChannel channel;
@@ -86,6 +86,7 @@ public class RollingBuffer implements ReadableByteBuffer {
    *         the request number.
    * @throws IOException
    */
+  @Override
   public boolean advance(int bytes) throws IOException {
     if (bytes < 0) {
       throw new IllegalArgumentException("Cannot advance window backwards");
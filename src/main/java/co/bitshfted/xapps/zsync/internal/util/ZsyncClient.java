@@ -29,18 +29,26 @@ package co.bitshfted.xapps.zsync.internal.util;
 import co.bitshfted.xapps.zsync.http.ContentRange;
 import co.bitshfted.xapps.zsync.http.Credentials;
 
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static java.lang.Math.min;
@@ -48,6 +56,7 @@ import static java.net.HttpURLConnection.*;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.Collections.newSetFromMap;
 
 
@@ -64,6 +73,17 @@ public class ZsyncClient {
     return new ZsyncClient(HttpClient.newHttpClient());
   }
 
+  /**
+   * Creates a zsync client that sends requests with the given, preconfigured http client, e.g. to
+   * set the HTTP version, timeouts, an executor, or a proxy.
+   *
+   * @param httpClient
+   * @return
+   */
+  public static ZsyncClient newZsyncClient(HttpClient httpClient) {
+    return new ZsyncClient(httpClient);
+  }
+
 
   /**
    * Indicates that an unexpected response code has been received
@@ -85,6 +105,18 @@ public class ZsyncClient {
     }
   }
 
+  /**
+   * Failure of the range receiver itself rather than of the response body it reads, e.g. failing to
+   * write the output file. Such failures are neither retried nor blamed on the server.
+   */
+  private static class ReceiverIOException extends IOException {
+    private static final long serialVersionUID = -2968391530546127394L;
+
+    ReceiverIOException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
   /**
    * Emits an <code>initiating</code> event prior to sending the Http request to the sever. Once the
    * response has been received and the header parsed, emits a <code>started</code> event prior to
@@ -92,7 +124,7 @@ public class ZsyncClient {
    *
    * @author bbusjaeger
    */
-  public  interface HttpTransferListener extends TransferListener.ResourceTransferListener<HttpResponse<byte[]>> {
+  public  interface HttpTransferListener extends TransferListener.ResourceTransferListener<HttpResponse<InputStream>> {
     void initiating(HttpRequest request);
   }
 
@@ -102,17 +134,77 @@ public class ZsyncClient {
 
   public static interface RangeReceiver {
     void receive(ContentRange range, InputStream in) throws IOException;
+
+    /**
+     * Returns the expected length of the resource, which is used for a full response without a
+     * Content-Length header, or a non-positive value if not known.
+     */
+    default long getLength() {
+      return -1;
+    }
   }
 
-  private static final int MAXIMUM_RANGES_PER_HTTP_REQUEST = 100;
+  // budget for the value of the Range header, leaves room for other headers within the common 8KB limit
+  static final int MAXIMUM_RANGE_HEADER_LENGTH = 4096;
+
+  public static final int MAXIMUM_RANGES_PER_HTTP_REQUEST = 100;
+
+  // number of ranges per request tried first with a host, grows from there as long as the host accepts them
+  static final int INITIAL_RANGES_PER_HTTP_REQUEST = 100;
+
+  // the Range header budget fits at most this many ranges of the shortest form "0-0,", so growth stops there
+  private static final int RANGE_LIMIT_CEILING = MAXIMUM_RANGE_HEADER_LENGTH / 4;
+
+  // status codes not defined by HttpURLConnection
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+  private static final int HTTP_HEADER_FIELDS_TOO_LARGE = 431;
+
+  // delay before the first retry of a failed range request, doubled for each further attempt
+  static final long INITIAL_RETRY_BACKOFF_MILLIS = 500;
+  static final long MAXIMUM_RETRY_BACKOFF_MILLIS = 16000;
+
+  // interval at which idle mirror requests check whether all batches have been received
+  private static final long MIRROR_POLL_MILLIS = 100;
+
+  // initial size of the buffer used to parse multipart response bodies, payload is handed out as slices of it
+  private static final int MULTIPART_BUFFER_SIZE = 64 * 1024;
 
   private final HttpClient httpClient;
   private final Set<String> basicChallengeReceived;
+  private final Map<String, RangeLimit> rangeLimits;
 
   ZsyncClient(HttpClient httpClient) {
     ZsyncUtil.checkArgument(httpClient != null, "httpClient cannot be null");
     this.httpClient = httpClient;
     this.basicChallengeReceived = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.rangeLimits = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * The number of ranges per request a host accepts, learned from its responses. Starts out at
+   * {@link #INITIAL_RANGES_PER_HTTP_REQUEST}, is halved whenever a batch is rejected or the ranges
+   * come back coalesced, and doubled after a full batch is served as requested, but never again
+   * up to a size that was rejected before, nor beyond the number of ranges the Range header budget
+   * can hold. Batches cut short by the budget are not full, so they do not count as accepted.
+   */
+  static class RangeLimit {
+    private int limit = INITIAL_RANGES_PER_HTTP_REQUEST;
+    private int rejected = Integer.MAX_VALUE;
+
+    synchronized int get() {
+      return this.limit;
+    }
+
+    synchronized void accepted(int size) {
+      if (size >= this.limit) {
+        this.limit = min(RANGE_LIMIT_CEILING, min(this.rejected - 1, this.limit * 2));
+      }
+    }
+
+    synchronized void rejected(int size) {
+      this.rejected = min(this.rejected, size);
+      this.limit = Math.max(1, min(this.limit, size / 2));
+    }
   }
 
   /**
@@ -139,7 +231,8 @@ public class ZsyncClient {
 
   /**
    * Opens a connection to the remote resource referred to by the given uri. The returned stream is
-   * decorated with to report download progress to the given listener.
+   * decorated with to report download progress to the given listener. The response body is streamed
+   * from the connection, so the caller must close the returned stream.
    *
    * @param uri The URI of the resource to retrieve
    * @param credentials The credentials for authenticating with remote hosts
@@ -150,16 +243,18 @@ public class ZsyncClient {
    */
   public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener)
       throws IOException, HttpError, InterruptedException {
-    final HttpResponse<byte[]> response = executeWithAuthRetry(uri, credentials, listener, Collections.<ContentRange>emptyList());
+    final HttpResponse<InputStream> response = executeWithAuthRetry(uri, credentials, listener, Collections.<ContentRange>emptyList());
     final int code = response.statusCode();
     if (code != HTTP_OK) {
+      discard(response);
       throw new HttpError("Request failed", code);
     }
     return inputStream(response, listener);
   }
 
   /**
-   * Retrieves the requested ranges for the resource referred to by the given uri.
+   * Retrieves the requested ranges for the resource referred to by the given uri. Response bodies
+   * are streamed to the receiver as they arrive rather than being buffered in memory first.
    *
    * @param uri
    * @param ranges
@@ -170,37 +265,535 @@ public class ZsyncClient {
    */
   public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
       RangeReceiver receiver, RangeTransferListener listener) throws IOException, HttpError, InterruptedException {
-    final Set<ContentRange> remaining = new LinkedHashSet<>(ranges);
-    while (!remaining.isEmpty()) {
-      final List<ContentRange> next = remaining.stream().limit(min(remaining.size(), MAXIMUM_RANGES_PER_HTTP_REQUEST)).collect(Collectors.toList());
+    this.partialGet(uri, ranges, credentials, receiver, listener, 1);
+  }
+
+  /**
+   * Retrieves the requested ranges with up to <code>maxConcurrentRequests</code> requests of at
+   * most {@value #MAXIMUM_RANGES_PER_HTTP_REQUEST} ranges each in flight at the same time.
+   *
+   * @see #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener, int, int)
+   */
+  public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests)
+      throws IOException, HttpError, InterruptedException {
+    this.partialGet(uri, ranges, credentials, receiver, listener, maxConcurrentRequests,
+        MAXIMUM_RANGES_PER_HTTP_REQUEST);
+  }
+
+  /**
+   * Retrieves the requested ranges without retrying failed requests.
+   *
+   * @see #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener, int, int, int)
+   */
+  public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests, int maxRangesPerRequest)
+      throws IOException, HttpError, InterruptedException {
+    this.partialGet(uri, ranges, credentials, receiver, listener, maxConcurrentRequests, maxRangesPerRequest, 0);
+  }
+
+  /**
+   * Retrieves the requested ranges for the resource referred to by the given uri with up to
+   * <code>maxConcurrentRequests</code> requests in flight at the same time. The ranges are split into
+   * batches of at most <code>maxRangesPerRequest</code> ranges, or fewer if the server was found to
+   * accept fewer, up front and each batch is
+   * fetched independently, so the receiver and listener must be thread safe if more than one request
+   * is allowed. Ranges are handed to the receiver in the order they arrive, not in file order.
+   * <p>
+   * Within these bounds, the number of ranges per request adapts to the server: requests are kept
+   * within a budget for the length of the Range header, batches rejected with 400, 416 or 431 are
+   * split and sent again, and if the server coalesces ranges, the received range is accepted for all
+   * requested ranges it covers and subsequent batches are made smaller. Batches served as requested
+   * let the limit grow again, up to <code>maxRangesPerRequest</code>. The learned limit is kept per
+   * host for later calls.
+   * <p>
+   * If the http client negotiates HTTP/2 with the server, concurrent requests are multiplexed as
+   * streams over a single connection. Small batches, down to a single range per request, then avoid
+   * the overhead of multipart responses without opening additional connections, and a slow response
+   * does not hold up the others.
+   * <p>
+   * If a request fails with an I/O error, e.g. because the connection drops or a multipart body is
+   * truncated, or with a 5xx server error, the ranges of its batch that have not been received yet
+   * are requested again after an exponentially growing delay. Up to <code>maxRetries</code> such
+   * retries are made in total, shared by all batches, before the error is propagated.
+   *
+   * @param uri
+   * @param ranges
+   * @param credentials
+   * @param receiver
+   * @param listener
+   * @param maxConcurrentRequests maximum number of requests to issue concurrently, must be positive
+   * @param maxRangesPerRequest maximum number of ranges to request at once, must be positive
+   * @param maxRetries maximum number of failed requests to retry, must not be negative
+   * @throws IOException
+   * @throws HttpError
+   * @throws InterruptedException
+   */
+  public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests, int maxRangesPerRequest,
+      int maxRetries) throws IOException, HttpError, InterruptedException {
+    ZsyncUtil.checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+    this.partialGet(uri, ranges, credentials, receiver, listener, maxConcurrentRequests, maxRangesPerRequest,
+        new AtomicInteger(maxRetries));
+  }
+
+  /**
+   * Retrieves the requested ranges, drawing retries from the given budget, which may be shared with
+   * other calls so that several rounds of requests together make at most the given number of retries.
+   * The budget is decremented for each retry made.
+   *
+   * @see #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener, int, int, int)
+   */
+  public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests, int maxRangesPerRequest,
+      AtomicInteger retriesLeft) throws IOException, HttpError, InterruptedException {
+    ZsyncUtil.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+    ZsyncUtil.checkArgument(maxRangesPerRequest > 0, "maxRangesPerRequest must be positive");
+    final AtomicBoolean fullBodyReceived = new AtomicBoolean();
+    final int batchSize = min(maxRangesPerRequest, this.rangeLimit(uri).get());
+    if (maxConcurrentRequests == 1 || ranges.size() <= batchSize) {
+      try {
+        this.fetchRanges(uri, new LinkedHashSet<>(ranges), credentials, receiver, listener, fullBodyReceived,
+            maxRangesPerRequest, retriesLeft);
+      } catch (ReceiverIOException e) {
+        throw (IOException) e.getCause();
+      }
+      return;
+    }
+
+    final List<Set<ContentRange>> batches = new ArrayList<>();
+    for (int i = 0; i < ranges.size(); i += batchSize) {
+      batches.add(new LinkedHashSet<>(ranges.subList(i, min(ranges.size(), i + batchSize))));
+    }
+    final ExecutorService executor =
+        ZsyncUtil.newDaemonThreadPool(min(maxConcurrentRequests, batches.size()), "zsync-range-fetcher");
+    try {
+      final List<Future<Void>> futures = new ArrayList<>(batches.size());
+      for (Set<ContentRange> batch : batches) {
+        futures.add(executor.submit(() -> {
+          this.fetchRanges(uri, batch, credentials, receiver, listener, fullBodyReceived, maxRangesPerRequest,
+              retriesLeft);
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw rethrow(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Retrieves the requested ranges from several mirrors of the same resource. The ranges are split
+   * into batches of at most <code>maxRangesPerRequest</code> ranges, which up to
+   * <code>maxConcurrentRequests</code> requests per mirror take from a shared queue as they become
+   * idle. Faster mirrors hence come back for more sooner and serve a share of the batches in
+   * proportion to their throughput.
+   * <p>
+   * A mirror that fails is dropped without retrying while other mirrors are healthy, the last one
+   * once its retries are used up: the ranges of its batch that have not been received yet are put
+   * back into the queue for the remaining mirrors. The error is only propagated if all mirrors fail.
+   * Errors of the receiver are propagated at once. With a single URI, this is equivalent to
+   * {@link #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener, int, int, int)}.
+   *
+   * @param uris mirrors of the resource to retrieve the ranges from, must not be empty
+   * @param ranges
+   * @param credentials
+   * @param receiver
+   * @param listener
+   * @param maxConcurrentRequests maximum number of requests to issue concurrently per mirror, must
+   *        be positive
+   * @param maxRangesPerRequest maximum number of ranges to request at once, must be positive
+   * @param maxRetries maximum number of failed requests to retry, must not be negative
+   * @throws IOException
+   * @throws HttpError
+   * @throws InterruptedException
+   */
+  public void partialGet(List<URI> uris, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests, int maxRangesPerRequest,
+      int maxRetries) throws IOException, HttpError, InterruptedException {
+    ZsyncUtil.checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+    this.partialGet(uris, ranges, credentials, receiver, listener, maxConcurrentRequests, maxRangesPerRequest,
+        new AtomicInteger(maxRetries));
+  }
+
+  /**
+   * Retrieves the requested ranges from several mirrors, drawing retries from the given budget, which
+   * may be shared with other calls.
+   *
+   * @see #partialGet(List, List, Map, RangeReceiver, RangeTransferListener, int, int, int)
+   * @see #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener, int, int, AtomicInteger)
+   */
+  public void partialGet(List<URI> uris, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, int maxConcurrentRequests, int maxRangesPerRequest,
+      AtomicInteger retriesLeft) throws IOException, HttpError, InterruptedException {
+    ZsyncUtil.checkArgument(!uris.isEmpty(), "uris must not be empty");
+    if (uris.size() == 1) {
+      this.partialGet(uris.get(0), ranges, credentials, receiver, listener, maxConcurrentRequests, maxRangesPerRequest,
+          retriesLeft);
+      return;
+    }
+    ZsyncUtil.checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+    ZsyncUtil.checkArgument(maxRangesPerRequest > 0, "maxRangesPerRequest must be positive");
+    int batchSize = maxRangesPerRequest;
+    for (URI uri : uris) {
+      batchSize = min(batchSize, this.rangeLimit(uri).get());
+    }
+    final BlockingQueue<Set<ContentRange>> batches = new LinkedBlockingQueue<>();
+    for (int i = 0; i < ranges.size(); i += batchSize) {
+      batches.add(new LinkedHashSet<>(ranges.subList(i, min(ranges.size(), i + batchSize))));
+    }
+    final Mirrors mirrors = new Mirrors(uris.size(), batches.size(), retriesLeft);
+    final int requestsPerMirror = min(maxConcurrentRequests, batches.size());
+    final ExecutorService executor =
+        ZsyncUtil.newDaemonThreadPool(Math.max(1, uris.size() * requestsPerMirror), "zsync-range-fetcher");
+    try {
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (URI uri : uris) {
+        final AtomicBoolean healthy = new AtomicBoolean(true);
+        for (int i = 0; i < requestsPerMirror; i++) {
+          futures.add(executor.submit(() -> {
+            this.fetchFromMirror(uri, healthy, batches, mirrors, credentials, receiver, listener, maxRangesPerRequest);
+            return null;
+          }));
+        }
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw rethrow(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * State shared by the requests to all mirrors of a resource
+   */
+  private static class Mirrors {
+    final AtomicInteger healthy;
+    final AtomicInteger pendingBatches;
+    final AtomicInteger retriesLeft;
+    final AtomicBoolean fullBodyReceived = new AtomicBoolean();
+    final AtomicBoolean receiverFailed = new AtomicBoolean();
+
+    Mirrors(int mirrors, int batches, AtomicInteger retriesLeft) {
+      this.healthy = new AtomicInteger(mirrors);
+      this.pendingBatches = new AtomicInteger(batches);
+      this.retriesLeft = retriesLeft;
+    }
+
+    boolean isDone() {
+      return this.pendingBatches.get() == 0 || this.fullBodyReceived.get() || this.healthy.get() == 0
+          || this.receiverFailed.get();
+    }
+  }
+
+  /**
+   * Fetches batches from the queue from the given mirror until all batches are received or the
+   * mirror fails. The batch of a failed mirror goes back to the queue, and the error is propagated
+   * only by the last mirror to fail. While other mirrors are healthy, a failing mirror is dropped
+   * without retrying, so that it does not use up the retries the remaining mirrors may need. Failures
+   * of the receiver are propagated at once.
+   */
+  private void fetchFromMirror(URI uri, AtomicBoolean healthy, BlockingQueue<Set<ContentRange>> batches,
+      Mirrors mirrors, Map<String, ? extends Credentials> credentials, RangeReceiver receiver,
+      RangeTransferListener listener, int maxRangesPerRequest) throws IOException, HttpError, InterruptedException {
+    while (healthy.get() && !mirrors.isDone()) {
+      // batches may be put back by failing mirrors, so wait for more until all are received
+      final Set<ContentRange> batch = batches.poll(MIRROR_POLL_MILLIS, MILLISECONDS);
+      if (batch == null) {
+        continue;
+      }
+      if (!healthy.get()) {
+        batches.add(batch);
+        return;
+      }
+      final AtomicInteger retriesLeft = mirrors.healthy.get() > 1 ? new AtomicInteger() : mirrors.retriesLeft;
+      try {
+        this.fetchRanges(uri, batch, credentials, receiver, listener, mirrors.fullBodyReceived, maxRangesPerRequest,
+            retriesLeft);
+      } catch (ReceiverIOException e) {
+        mirrors.receiverFailed.set(true);
+        throw e;
+      } catch (IOException | HttpError e) {
+        batches.add(batch);
+        if (healthy.compareAndSet(true, false) && mirrors.healthy.decrementAndGet() == 0) {
+          throw e;
+        }
+        return;
+      }
+      mirrors.pendingBatches.decrementAndGet();
+    }
+  }
+
+  /**
+   * Requests the given ranges in batches until all of them have been received. The remaining set is
+   * modified as ranges are received. If the server responds with the full content instead of the
+   * requested ranges, the given flag is set, so that concurrent fetches can stop early. Failed
+   * requests are retried while the shared retry budget lasts, failures of the receiver are not.
+   */
+  private void fetchRanges(URI uri, Set<ContentRange> remaining, Map<String, ? extends Credentials> credentials,
+      RangeReceiver rangeReceiver, RangeTransferListener listener, AtomicBoolean fullBodyReceived,
+      int maxRangesPerRequest, AtomicInteger retriesLeft) throws IOException, HttpError, InterruptedException {
+    final RangeReceiver receiver = guard(rangeReceiver);
+    final RangeLimit rangeLimit = this.rangeLimit(uri);
+    int failures = 0;
+    while (!remaining.isEmpty() && !fullBodyReceived.get()) {
+      if (failures > 0) {
+        Thread.sleep(retryBackoffMillis(failures));
+      }
+      final int limit = min(maxRangesPerRequest, rangeLimit.get());
+      final List<ContentRange> next = nextBatch(remaining, limit);
       final HttpTransferListener requestListener = listener.newTransfer(next);
-      final HttpResponse<byte[]> response = executeWithAuthRetry(uri, credentials, requestListener, next);
+      final HttpResponse<InputStream> response;
+      try {
+        response = executeWithAuthRetry(uri, credentials, requestListener, next);
+      } catch (IOException e) {
+        closeQuietly(requestListener);
+        if (retriesLeft.getAndDecrement() <= 0) {
+          throw e;
+        }
+        failures++;
+        continue;
+      }
       final int code = response.statusCode();
       // tolerate case that server does not support range requests
       if (code == HTTP_OK) {
-        receiver.receive(new ContentRange(0, response.body().length), inputStream(response, requestListener));
+        if (fullBodyReceived.compareAndSet(false, true)) {
+          handleFullBody(response, receiver, requestListener);
+        } else {
+          discard(response);
+        }
         return;
       }
       // otherwise only accept partial content response
       if (code != HTTP_PARTIAL) {
+        discard(response);
+        closeQuietly(requestListener);
+        // the server may limit the number of ranges or the size of the header, so retry with fewer
+        if (next.size() > 1 && (code == HTTP_BAD_REQUEST || code == HTTP_RANGE_NOT_SATISFIABLE
+            || code == HTTP_HEADER_FIELDS_TOO_LARGE)) {
+          rangeLimit.rejected(next.size());
+          continue;
+        }
+        if (code >= HTTP_INTERNAL_ERROR && retriesLeft.getAndDecrement() > 0) {
+          failures++;
+          continue;
+        }
         throw new HttpError("Not partial HTTP code", code);
       }
       // check if we're dealing with multipart (multiple ranges) or simple (single range) response
       final MediaType mediaType = parseContentType(response);
-      if (mediaType != null && "multipart".equals(mediaType.type())) {
-        final byte[] boundary = getBoundary(mediaType);
-        handleMultiPartBody(response, receiver, remaining, requestListener, boundary);
-      } else {
-        handleSinglePartBody(response, receiver, remaining, requestListener);
+      final byte[] boundary = mediaType != null && "multipart".equals(mediaType.type()) ? getBoundary(mediaType) : null;
+      final boolean coalesced;
+      try {
+        if (boundary != null) {
+          coalesced = handleMultiPartBody(response, receiver, remaining, requestListener, boundary);
+        } else {
+          coalesced = handleSinglePartBody(response, receiver, remaining, requestListener);
+        }
+      } catch (IOException e) {
+        // ranges received before the failure have been removed from the remaining set
+        discard(response);
+        if (e instanceof ReceiverIOException || retriesLeft.getAndDecrement() <= 0) {
+          throw e;
+        }
+        failures++;
+        continue;
+      }
+      failures = 0;
+      if (coalesced) {
+        rangeLimit.rejected(next.size());
+      } else if (next.size() == limit) {
+        rangeLimit.accepted(next.size());
+      }
+    }
+  }
+
+  /**
+   * Returns a receiver that reports failures of the given receiver as {@link ReceiverIOException}s,
+   * unless reading the response body failed or ended early, which the receiver may have reported in
+   * turn.
+   */
+  private static RangeReceiver guard(RangeReceiver receiver) {
+    return new RangeReceiver() {
+      @Override
+      public void receive(ContentRange range, InputStream in) throws IOException {
+        final AtomicBoolean bodyFailed = new AtomicBoolean();
+        final InputStream body;
+        if (in instanceof SliceInputStream) {
+          body = new SliceInputStream() {
+            @Override
+            public ByteBuffer readSlice(int max) throws IOException {
+              try {
+                final ByteBuffer slice = ((SliceInputStream) in).readSlice(max);
+                if (slice == null) {
+                  bodyFailed.set(true);
+                }
+                return slice;
+              } catch (IOException e) {
+                bodyFailed.set(true);
+                throw e;
+              }
+            }
+          };
+        } else {
+          body = new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+              try {
+                final int b = super.read();
+                if (b == -1) {
+                  bodyFailed.set(true);
+                }
+                return b;
+              } catch (IOException e) {
+                bodyFailed.set(true);
+                throw e;
+              }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              try {
+                final int n = super.read(b, off, len);
+                if (n == -1) {
+                  bodyFailed.set(true);
+                }
+                return n;
+              } catch (IOException e) {
+                bodyFailed.set(true);
+                throw e;
+              }
+            }
+          };
+        }
+        try {
+          receiver.receive(range, body);
+        } catch (IOException e) {
+          if (bodyFailed.get()) {
+            throw e;
+          }
+          throw new ReceiverIOException(e);
+        }
+      }
+
+      @Override
+      public long getLength() {
+        return receiver.getLength();
       }
+    };
+  }
+
+  /**
+   * Returns the delay before retrying a request that failed the given number of times in a row.
+   */
+  static long retryBackoffMillis(int failures) {
+    return min(MAXIMUM_RETRY_BACKOFF_MILLIS, INITIAL_RETRY_BACKOFF_MILLIS << min(failures - 1, 16));
+  }
+
+  private static void closeQuietly(HttpTransferListener listener) {
+    try {
+      listener.close();
+    } catch (IOException e) {
+      // nothing left to report for this request
     }
   }
 
-  HttpResponse<byte[]> executeWithAuthRetry(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener,
+  private RangeLimit rangeLimit(URI uri) {
+    return this.rangeLimits.computeIfAbsent(uri.getHost(), h -> new RangeLimit());
+  }
+
+  /**
+   * Returns the next ranges to request: at most <code>limit</code> ranges, but no more than fit
+   * into the Range header budget, and always at least one.
+   */
+  static List<ContentRange> nextBatch(Set<ContentRange> remaining, int limit) {
+    final List<ContentRange> next = new ArrayList<>(min(remaining.size(), limit));
+    int headerLength = "bytes=".length() - 1;
+    for (ContentRange range : remaining) {
+      headerLength += range.toString().length() + 1;
+      if (next.size() == limit || (!next.isEmpty() && headerLength > MAXIMUM_RANGE_HEADER_LENGTH)) {
+        break;
+      }
+      next.add(range);
+    }
+    return next;
+  }
+
+  /**
+   * Returns the remaining ranges covered by the given received range. This is the received range
+   * itself, unless the server coalesced several requested ranges into it.
+   *
+   * @throws IOException if the received range does not cover any remaining range
+   */
+  static List<ContentRange> coveredRanges(Set<ContentRange> remaining, ContentRange received) throws IOException {
+    if (remaining.contains(received)) {
+      return List.of(received);
+    }
+    final List<ContentRange> covered = remaining.stream()
+        .filter(r -> r.first() >= received.first() && r.last() <= received.last())
+        .collect(Collectors.toList());
+    if (covered.isEmpty()) {
+      throw new IOException("Received range " + received + " not one of requested " + remaining);
+    }
+    return covered;
+  }
+
+  /**
+   * Passes the given range to the receiver and removes the requested ranges it covers from the
+   * remaining ranges once received, so that they are requested again if receiving fails.
+   *
+   * @return whether the received range was coalesced
+   */
+  private static boolean receive(RangeReceiver receiver, Set<ContentRange> remaining, ContentRange range,
+      List<ContentRange> covered, InputStream in) throws IOException {
+    receiver.receive(range, in);
+    remaining.removeAll(covered);
+    return covered.size() > 1 || !covered.get(0).equals(range);
+  }
+
+  /**
+   * Rethrows the cause of a failed concurrent fetch as one of the exception types declared by
+   * {@link #partialGet}. Checked exceptions of any other type are wrapped in the returned
+   * IOException.
+   */
+  private static IOException rethrow(Throwable cause) throws IOException, HttpError, InterruptedException {
+    if (cause instanceof ReceiverIOException) {
+      throw (IOException) cause.getCause();
+    }
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof HttpError) {
+      throw (HttpError) cause;
+    }
+    if (cause instanceof InterruptedException) {
+      throw (InterruptedException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(cause);
+  }
+
+  HttpResponse<InputStream> executeWithAuthRetry(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener,
                                                  List<ContentRange> ranges) throws IOException, InterruptedException {
     HttpRequest request = buildRequest(uri, credentials, ranges);
     listener.initiating(request);
-    HttpResponse<byte[]> response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    HttpResponse<InputStream> response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
     for (int i = 0; i < 10; i++) {
       final int code = response.statusCode();
       if (!((code == HTTP_UNAUTHORIZED || code == HTTP_PROXY_AUTH) && containsBasic(response.headers().firstValue("WWW-Authenticate").orElse("")))) {
@@ -215,7 +808,9 @@ public class ZsyncClient {
       }
       final String name = code == HTTP_UNAUTHORIZED ? "Authorization" : "Proxy-Authorization";
       request = response.request().newBuilder().header(name, creds.basic()).build();
-      response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+      // release the connection held by the challenge response before retrying
+      discard(response);
+      response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
     }
     return response;
   }
@@ -241,10 +836,37 @@ public class ZsyncClient {
     return challenge.trim().startsWith("Basic");
   }
 
-  static void handleSinglePartBody(HttpResponse<byte[]> response, RangeReceiver receiver, final Set<ContentRange> remaining,
+  /**
+   * Hands the full body of a 200 response to the receiver. The length of the content is taken from
+   * the Content-Length header, since the body is streamed and not known in advance, or from the
+   * receiver if the header is missing, e.g. for a chunked response. The receiver then fails if the
+   * body ends early.
+   *
+   * @param response
+   * @param receiver
+   * @param listener
+   * @throws IOException
+   */
+  static void handleFullBody(HttpResponse<InputStream> response, RangeReceiver receiver, HttpTransferListener listener)
+      throws IOException {
+    long length = contentLength(response);
+    if (length <= 0) {
+      length = receiver.getLength();
+    }
+    if (length <= 0) {
+      discard(response);
+      throw new IOException("Content-Length header missing for full response");
+    }
+    try (InputStream in = inputStream(response, listener)) {
+      receiver.receive(new ContentRange(0, length - 1), in);
+    }
+  }
+
+  static boolean handleSinglePartBody(HttpResponse<InputStream> response, RangeReceiver receiver, final Set<ContentRange> remaining,
       HttpTransferListener listener) throws IOException {
     final String contentRange = response.headers().firstValue("Content-Range").orElse(null);
     if (contentRange == null) {
+      discard(response);
       throw new IOException("Content-Range header missing");
     }
 
@@ -252,106 +874,67 @@ public class ZsyncClient {
     try {
       range = parseContentRange(contentRange);
     } catch (ParseException e) {
+      discard(response);
       throw new IOException("Failed to parse Content-Range header " + contentRange, e);
     }
-    if (!remaining.remove(range)) {
-      throw new IOException("Received range " + range + " not one of requested " + remaining);
+    final List<ContentRange> covered;
+    try {
+      covered = coveredRanges(remaining, range);
+    } catch (IOException e) {
+      discard(response);
+      throw e;
     }
 
-    InputStream in = inputStream(response, listener);
-    receiver.receive(range, in);
+    try (InputStream in = inputStream(response, listener)) {
+      return receive(receiver, remaining, range, covered, in);
+    }
   }
 
-  static void handleMultiPartBody(HttpResponse<byte[]> response, RangeReceiver receiver, final Set<ContentRange> remaining,
+  static boolean handleMultiPartBody(HttpResponse<InputStream> response, RangeReceiver receiver, final Set<ContentRange> remaining,
       HttpTransferListener listener, byte[] boundary) throws IOException {
+    boolean coalesced = false;
     try (InputStream in = inputStream(response, listener)) {
+      final MultipartParser parser = new MultipartParser(in, boundary, MULTIPART_BUFFER_SIZE);
       ContentRange range;
-      while ((range = nextPart(in, boundary)) != null) {
-        // technically it's OK for server to combine or re-order ranges. However, since we
-        // already combine and sort ranges, this should not happen
-        if (!remaining.remove(range)) {
-          throw new IOException("Received range " + range + " not one of requested " + remaining);
-        }
-        final InputStream part = new LimitedInputStream(in, range.length());
-        receiver.receive(range, part);
+      while ((range = parser.nextPart()) != null) {
+        // it's OK for the server to combine or re-order ranges, e.g. if they are close together
+        final List<ContentRange> covered = coveredRanges(remaining, range);
+        coalesced |= receive(receiver, remaining, range, covered, parser.payload());
       }
     }
+    return coalesced;
   }
 
-  static InputStream inputStream(HttpResponse<byte[]> response, TransferListener.ResourceTransferListener<HttpResponse<byte[]>> listener) throws IOException {
-
-    final InputStream in = new ByteArrayInputStream(response.body());
-    return new ObservableInputStream.ObservableResourceInputStream<>(in, listener, response, response.body().length);
+  static InputStream inputStream(HttpResponse<InputStream> response, TransferListener.ResourceTransferListener<HttpResponse<InputStream>> listener) throws IOException {
+    return new ObservableInputStream.ObservableResourceInputStream<>(response.body(), listener, response, contentLength(response));
   }
 
-  static ContentRange nextPart(InputStream in, byte[] boundary) throws IOException {
-    int c = in.read();
-    if (c == '\r') {
-      if (!(in.read() == '\n' && in.read() == '-' && in.read() == '-')) {
-        throw new IOException("Expected part being not matched");
-      }
-    } else if (c == '-') {
-      if (!(in.read() == '-')) {
-        throw new IOException("Expected part being not matched");
-      }
-    }
-    final byte[] b = new byte[boundary.length];
-    int read = 0, r;
-    while (read < b.length && (r = in.read(b, read, b.length - read)) != -1) {
-      read += r;
-    }
-    if (read != b.length || !Arrays.equals(boundary, b)) {
-      throw new IOException("Invalid multipart boundary");
-    }
-    final int r1 = in.read();
-    final int r2 = in.read();
-    if (r1 == '-' && r2 == '-') {
-      if (!(in.read() == '\r' && in.read() == '\n' && in.read() == -1)) {
-        throw new IOException("unexpected end of body");
-      }
-      return null;
-    } else if (!(r1 == '\r' && r2 == '\n')) {
-      throw new IOException("Missing control line feed");
-    }
-
-    ContentRange range = null;
-    String header;
-    while ((header = readHeader(in)) != null) {
-      if (header.startsWith("Content-Range") || header.startsWith("Content-range")) {
-        if (range != null) {
-          throw new IOException("Multiple content range headers in multipart");
-        }
-        int idx = header.indexOf(':');
-        if (idx == -1) {
-          throw new IOException("Invalid Content-Range header " + header + " in multipart");
-        }
-        final String value = header.substring(idx + 2);
-        try {
-          range = parseContentRange(value);
-        } catch (ParseException e) {
-          throw new IOException("Failed to parse Content-Range header " + value, e);
-        }
-      }
-    }
-    return range;
+  /**
+   * Returns the value of the Content-Length header of the given response or -1 if the header is
+   * not set.
+   *
+   * @param response
+   * @return
+   */
+  static long contentLength(HttpResponse<?> response) {
+    return response.headers().firstValueAsLong("Content-Length").orElse(-1L);
   }
 
-  static String readHeader(InputStream in) throws IOException {
-    byte[] buf = new byte[256];
-    int pos = 0;
-    byte prev = -1;
-    int read;
-    while ((read = in.read()) != -1) {
-      if (prev == '\r' && read == '\n') {
-        return pos == 1 ? null : new String(buf, 0, pos - 1, ISO_8859_1);
-      }
-      if (pos == buf.length) {
-        buf = Arrays.copyOf(buf, buf.length * 2);
+  /**
+   * Closes the body of a response that is not going to be consumed, so that the underlying
+   * connection can be released.
+   *
+   * @param response
+   */
+  static void discard(HttpResponse<InputStream> response) {
+    final InputStream body = response.body();
+    if (body != null) {
+      try {
+        body.close();
+      } catch (IOException e) {
+        // nothing left to do with this response
       }
-      prev = (byte) read;
-      buf[pos++] = prev;
     }
-    throw new IOException("Body ended before finding multipart delimiter");
   }
 
   /**
@@ -36,6 +36,8 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import co.bitshfted.xapps.zsync.apache.mina.MD4;
 
@@ -72,6 +74,20 @@ public class ZsyncUtil {
     return toInt(a, b);
   }
 
+  /**
+   * Computes the rolling sum of the remaining bytes of the given buffer without changing its position
+   */
+  public static int computeRsum(ByteBuffer block) {
+    short a = 0;
+    short b = 0;
+    for (int i = block.position(), l = block.remaining(); i < block.limit(); i++, l--) {
+      final short val = unsigned(block.get(i));
+      a += val;
+      b += l * val;
+    }
+    return toInt(a, b);
+  }
+
   public static int toInt(short x, short y) {
     return (x << 16) | (y & 0xffff);
   }
@@ -86,13 +102,20 @@ public class ZsyncUtil {
 
   public static String computeSha1(ReadableByteChannel channel) throws IOException {
     final MessageDigest sha1 = newSHA1();
+    update(sha1, channel);
+    return toHexString(ByteBuffer.wrap(sha1.digest()));
+  }
+
+  /**
+   * Updates the digest with the remaining content of the channel.
+   */
+  public static void update(MessageDigest digest, ReadableByteChannel channel) throws IOException {
     final ByteBuffer buf = ByteBuffer.allocate(8192);
     while (channel.read(buf) != -1) {
       buf.flip();
-      sha1.update(buf);
+      digest.update(buf);
       buf.clear();
     }
-    return toHexString(ByteBuffer.wrap(sha1.digest()));
   }
 
   public static MessageDigest newMD4() {
@@ -126,6 +149,22 @@ public class ZsyncUtil {
     }
   }
 
+  /**
+   * Creates a fixed size thread pool of daemon threads, so that an abandoned pool does not keep the
+   * JVM alive. Callers are expected to shut the pool down once their tasks are complete.
+   *
+   * @param threads number of threads in the pool
+   * @param name name given to each thread in the pool
+   * @return
+   */
+  public static ExecutorService newDaemonThreadPool(int threads, String name) {
+    return Executors.newFixedThreadPool(threads, r -> {
+      final Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
   /**
    * Ensures the truth of an expression involving one or more parameters to the calling method.
    *
@@ -1,6 +1,7 @@
 module co.bitshifted.xapps.zsyncer {
-	requires java.net.http;
+	requires transitive java.net.http;
 
 	exports co.bitshfted.xapps.zsync;
 	exports co.bitshfted.xapps.zsync.apache.mina;
+	exports co.bitshfted.xapps.zsync.http;
 }
\ No newline at end of file
@@ -50,9 +50,34 @@ public class ZsyncMakeCompatibilityTest {
 
   @Test
   public void test() throws IOException {
+    this.assertCompatible(new Options().setFilename(this.name));
+  }
+
+  /**
+   * Asserts that checksums computed in parallel slices are identical to the ones computed serially
+   */
+  @Test
+  public void testThreads() throws IOException {
+    this.assertCompatible(new Options().setFilename(this.name).setThreads(4));
+  }
+
+  /**
+   * Asserts that checksums spilled to a temporary file are written unchanged
+   */
+  @Test
+  public void testSpillChecksums() throws IOException {
+    this.assertCompatible(new Options().setFilename(this.name).setMaxChecksumBufferSize(0));
+  }
+
+  @Test
+  public void testThreadsSpillChecksums() throws IOException {
+    this.assertCompatible(new Options().setFilename(this.name).setThreads(4).setMaxChecksumBufferSize(0));
+  }
+
+  private void assertCompatible(Options options) throws IOException {
     final Path inputFile = createTempInputFile(this.name);
     final Path expected = createTempInputFile(this.name + ".zsync");
-    final Path actual = new ZsyncMake().writeToFile(inputFile, new Options().setFilename(this.name)).getOutputFile();
+    final Path actual = new ZsyncMake().writeToFile(inputFile, options).getOutputFile();
     try {
       assertArrayEquals("Generated zsync file does not match expected file", readWithoutMTime(expected),
           readWithoutMTime(actual));
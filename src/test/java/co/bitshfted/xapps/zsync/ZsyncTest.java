@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.internal.ChecksumValidationIOException;
+import co.bitshfted.xapps.zsync.internal.ControlFile;
+import co.bitshfted.xapps.zsync.internal.OutputFileWriter;
+import co.bitshfted.xapps.zsync.internal.util.TransferListener.ResourceTransferListener;
+
+public class ZsyncTest {
+
+  @Test
+  public void testUnresolvedRegions() {
+    final boolean[] aligned = {true, false, false, true, true, false};
+    // windows starting in blocks 1-2 and 5-7, the input file being longer than the output file
+    assertEquals(List.of(new ContentRange(10, 38), new ContentRange(50, 74)),
+        Zsync.unresolvedRegions(aligned, 75, 5, 10, 10));
+    // the last region is extended backwards to fit a window of two blocks
+    assertEquals(List.of(new ContentRange(10, 38), new ContentRange(40, 54)),
+        Zsync.unresolvedRegions(new boolean[] {true, false, true, true, true, false}, 55, 5, 10, 20));
+    assertEquals(List.of(), Zsync.unresolvedRegions(new boolean[] {true, true}, 20, 0, 10, 10));
+    assertEquals(List.of(new ContentRange(0, 19)), Zsync.unresolvedRegions(new boolean[0], 20, 0, 10, 10));
+  }
+
+  /**
+   * Tests that an input file differing from the output file in a single block is only scanned around that block
+   */
+  @Test
+  public void testScanOnlyUnresolvedRegions() throws Exception {
+    final int blockSize = 1024;
+    final Path directory = Files.createTempDirectory("zsync-test");
+    try {
+      final byte[] target = new byte[64 * blockSize];
+      new Random(0).nextBytes(target);
+      final Path targetFile = Files.write(directory.resolve("target"), target);
+      final Path zsyncFile =
+          new ZsyncMake().writeToFile(targetFile, new ZsyncMake.Options().setBlockSize(blockSize)).getOutputFile();
+      final ControlFile controlFile;
+      try (InputStream in = Files.newInputStream(zsyncFile)) {
+        controlFile = ControlFile.read(in);
+      }
+      target[30 * blockSize + 7] ^= 1;
+      final Path seed = Files.write(directory.resolve("seed"), target);
+
+      final CountingListener scanned = new CountingListener();
+      final OutputFileWriter writer =
+          new OutputFileWriter(directory.resolve("output"), controlFile, new CountingListener());
+      new Zsync().processInputFile(writer, controlFile, seed, new Zsync.Options(), scanned);
+      assertEquals(List.of(new ContentRange(30 * blockSize, 31 * blockSize - 1)), writer.getMissingRanges());
+      try {
+        writer.close();
+        fail("expected checksum validation to fail for incomplete file");
+      } catch (ChecksumValidationIOException e) {
+        // expected
+      }
+      // the windows starting in the changed block, which reach into the following matcher block
+      final int matcherBlockSize = 2 * blockSize;
+      assertEquals(blockSize + matcherBlockSize - 1, scanned.bytes.get());
+    } finally {
+      try (var files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private static class CountingListener implements ResourceTransferListener<Path> {
+    final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public void start(Path resource, long length) {}
+
+    @Override
+    public void transferred(long bytes) {
+      this.bytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+}
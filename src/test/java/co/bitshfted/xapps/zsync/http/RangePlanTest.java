@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RangePlanTest {
+
+  private static final List<ContentRange> MISSING = List.of(new ContentRange(0, 9), new ContentRange(20, 29),
+      new ContentRange(35, 39), new ContentRange(100, 109));
+
+  @Test
+  public void testNoGap() {
+    final RangePlan plan = RangePlan.merge(MISSING, 0);
+    assertEquals(MISSING, plan.getRanges());
+    assertEquals(4, plan.getMissingRanges());
+    assertEquals(0, plan.getOverheadBytes());
+    assertEquals(0, plan.getRangesSaved());
+    assertEquals(0, plan.getRequestsSaved(1));
+  }
+
+  @Test
+  public void testMergeAdjacent() {
+    final RangePlan plan = RangePlan.merge(List.of(new ContentRange(0, 9), new ContentRange(10, 19)), 0);
+    assertEquals(List.of(new ContentRange(0, 19)), plan.getRanges());
+    assertEquals(0, plan.getOverheadBytes());
+    assertEquals(1, plan.getRangesSaved());
+  }
+
+  @Test
+  public void testMergeSmallGaps() {
+    final RangePlan plan = RangePlan.merge(MISSING, 10);
+    assertEquals(List.of(new ContentRange(0, 39), new ContentRange(100, 109)), plan.getRanges());
+    assertEquals(15, plan.getOverheadBytes());
+    assertEquals(2, plan.getRangesSaved());
+    assertEquals(2, plan.getRequestsSaved(1));
+    assertEquals(1, plan.getRequestsSaved(3));
+    assertEquals(0, plan.getRequestsSaved(100));
+  }
+
+  @Test
+  public void testMergeAll() {
+    final RangePlan plan = RangePlan.merge(MISSING, Long.MAX_VALUE);
+    assertEquals(List.of(new ContentRange(0, 109)), plan.getRanges());
+    assertEquals(75, plan.getOverheadBytes());
+    assertEquals(3, plan.getRangesSaved());
+  }
+
+  @Test
+  public void testEmpty() {
+    final RangePlan plan = RangePlan.merge(List.of(), 10);
+    assertEquals(List.of(), plan.getRanges());
+    assertEquals(0, plan.getRangesSaved());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeGap() {
+    RangePlan.merge(MISSING, -1);
+  }
+
+}
@@ -67,11 +67,18 @@ public class BaseJettyTest {
     ServletHolder defaultServletHolder = new ServletHolder("default", DefaultServlet.class);
     defaultServletHolder.setInitParameter("acceptRanges", "true");
     servletContextHandler.addServlet(defaultServletHolder, "/");
+    this.configure(servletContextHandler);
     this.server.setHandler(servletContextHandler);
     this.server.start();
     this.port = ((ServerConnector) this.server.getConnectors()[0]).getLocalPort();
   }
 
+  /**
+   * Hook for tests to add filters or servlets before the server starts.
+   */
+  protected void configure(ServletContextHandler servletContextHandler) {
+  }
+
   @After
   public void stopJetty() throws Exception {
     this.server.stop();
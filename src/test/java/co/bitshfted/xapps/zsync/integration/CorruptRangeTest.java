@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Test;
+
+import co.bitshfted.xapps.zsync.Zsync;
+import co.bitshfted.xapps.zsync.ZsyncObserver;
+import co.bitshfted.xapps.zsync.http.RangePlan;
+
+/**
+ * Runs zsync against a server that corrupts the first range it serves.
+ */
+public class CorruptRangeTest extends BaseJettyTest {
+
+  private static final String REPO_ROOT = "/.m2/repository/";
+
+  private final CorruptFirstRangeFilter filter = new CorruptFirstRangeFilter();
+
+  @Override
+  protected void configure(ServletContextHandler servletContextHandler) {
+    servletContextHandler.addFilter(new FilterHolder(this.filter), "/*", EnumSet.of(DispatcherType.REQUEST));
+  }
+
+  @Test
+  public void testCorruptRangeIsFetchedAgain() throws Exception {
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath)
+        .setMaxRangesPerRequest(1);
+    final AtomicInteger plans = new AtomicInteger();
+    final AtomicInteger refetchedRanges = new AtomicInteger();
+    ZsyncObserver observer = new ZsyncObserver() {
+      @Override
+      public void remoteFileRangesPlanned(URI uri, RangePlan plan) {
+        if (plans.incrementAndGet() > 1) {
+          refetchedRanges.addAndGet(plan.getRanges().size());
+        }
+      }
+    };
+
+    Path result = new Zsync().zsync(uri, options, observer);
+
+    assertEquals(outputPath, result);
+    assertTrue(this.filter.corrupted.get());
+    assertEquals("only the corrupt range should be fetched again", 2, plans.get());
+    assertEquals(1, refetchedRanges.get());
+  }
+
+  /**
+   * Flips a bit in the body of the first response to a range request.
+   */
+  private static final class CorruptFirstRangeFilter implements Filter {
+
+    final AtomicBoolean corrupted = new AtomicBoolean();
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      if (((HttpServletRequest) request).getHeader("Range") == null || this.corrupted.getAndSet(true)) {
+        chain.doFilter(request, response);
+        return;
+      }
+      chain.doFilter(request, new HttpServletResponseWrapper((HttpServletResponse) response) {
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+          final ServletOutputStream out = super.getOutputStream();
+          return new ServletOutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+              out.write(this.written++ == 100 ? b ^ 1 : b);
+            }
+
+            @Override
+            public boolean isReady() {
+              return out.isReady();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+              out.setWriteListener(writeListener);
+            }
+          };
+        }
+      });
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+  }
+
+}
@@ -31,10 +31,13 @@ import static org.junit.Assert.fail;
 
 import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import co.bitshfted.xapps.zsync.Zsync;
+import co.bitshfted.xapps.zsync.ZsyncStatsObserver;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -55,6 +58,77 @@ public class GetTest extends BaseJettyTest {
     URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
     Path outputPath = super.createTempFile(".jar");
     Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync().zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    assertEquals("input file bytes should be counted once", Files.size(Paths.get(oldGuava.toURI())),
+        (long) observer.build().getTotalBytesReadByInputFile().get(Paths.get(oldGuava.toURI())));
+  }
+
+  @Test
+  public void testWithConcurrentRequests() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath)
+        .setMaxConcurrentRequestsPerHost(4);
+
+    // Act
+    Path result = new Zsync().zsync(uri, options, new ZsyncStatsObserver());
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+  }
+
+  @Test
+  public void testWithConfiguredHttpClient() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath)
+        .setMaxConcurrentRequestsPerHost(4).setMaxRangesPerRequest(1);
+    HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+    // Act
+    Path result = new Zsync(httpClient).zsync(uri, options);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+  }
+
+  @Test
+  public void testWithConcurrentInputFileScan() throws Exception {
+    // Arrange
+    URL sameGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/18.0/guava-18.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(sameGuava.toURI())).setOutputFile(outputPath)
+        .setInputFileThreads(4);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync().zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    assertEquals("identical input file should not require download", 0,
+        observer.build().getBytesDownloadedFromRemoteFile());
+  }
+
+  @Test
+  public void testWithMappedInputFile() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/17.0/guava-17.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Zsync.Options options = new Zsync.Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath)
+        .setMapInputFiles(true).setInputFileThreads(2);
 
     // Act
     Path result = new Zsync().zsync(uri, options);
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    this.directory = Files.createTempDirectory("block-cache");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(this.directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void testPutGet() throws IOException {
+    final BlockCache cache = new BlockCache(this.directory, 1024);
+    final byte[] block = block(1);
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block));
+    // storing the same block again is a no-op
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block));
+
+    final ByteBuffer read = ByteBuffer.allocate(BLOCK_SIZE);
+    assertTrue(cache.get(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, read));
+    assertArrayEquals(block, read.array());
+  }
+
+  @Test
+  public void testMiss() throws IOException {
+    final BlockCache cache = new BlockCache(this.directory, 1024);
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block(1)));
+    final ByteBuffer read = ByteBuffer.allocate(2 * BLOCK_SIZE);
+    assertFalse(cache.get(BLOCK_SIZE, 43, new byte[] { 1, 2, 3 }, read));
+    assertFalse(cache.get(BLOCK_SIZE, 42, new byte[] { 1, 2, 4 }, read));
+    assertFalse(cache.get(2 * BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, read));
+    assertEquals(0, read.position());
+  }
+
+  /**
+   * Tests that a block damaged on disk is dropped instead of returned
+   */
+  @Test
+  public void testCorruptBlock() throws IOException {
+    final BlockCache cache = new BlockCache(this.directory, 1024);
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block(1)));
+    try (Stream<Path> files = Files.walk(this.directory)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[3] ^= 1;
+        Files.write(file, bytes);
+      }
+    }
+    final ByteBuffer read = ByteBuffer.allocate(BLOCK_SIZE);
+    assertFalse(cache.get(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, read));
+    assertEquals(0, read.position());
+    // stored again once dropped
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block(1)));
+    assertTrue(cache.get(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, read));
+    assertArrayEquals(block(1), read.array());
+  }
+
+  @Test
+  public void testRemove() throws IOException {
+    final BlockCache cache = new BlockCache(this.directory, 1024);
+    cache.put(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.wrap(block(1)));
+    cache.remove(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 });
+    cache.remove(BLOCK_SIZE, 43, new byte[] { 1, 2, 3 });
+    assertFalse(cache.get(BLOCK_SIZE, 42, new byte[] { 1, 2, 3 }, ByteBuffer.allocate(BLOCK_SIZE)));
+  }
+
+  /**
+   * Tests that the least recently used blocks are evicted first
+   */
+  @Test
+  public void testTrim() throws IOException {
+    final BlockCache cache = new BlockCache(this.directory, 2 * (BLOCK_SIZE + BlockCache.DIGEST_LENGTH));
+    for (int i = 0; i < 4; i++) {
+      cache.put(BLOCK_SIZE, i, new byte[] { (byte) i }, ByteBuffer.wrap(block(i)));
+    }
+    // make blocks 0 and 3 the most recently used, the others older
+    try (Stream<Path> files = Files.walk(this.directory)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+      }
+    }
+    final ByteBuffer read = ByteBuffer.allocate(BLOCK_SIZE);
+    assertTrue(cache.get(BLOCK_SIZE, 0, new byte[] { 0 }, read.clear()));
+    assertTrue(cache.get(BLOCK_SIZE, 3, new byte[] { 3 }, read.clear()));
+
+    cache.trim();
+
+    assertTrue(cache.get(BLOCK_SIZE, 0, new byte[] { 0 }, read.clear()));
+    assertFalse(cache.get(BLOCK_SIZE, 1, new byte[] { 1 }, read.clear()));
+    assertFalse(cache.get(BLOCK_SIZE, 2, new byte[] { 2 }, read.clear()));
+    assertTrue(cache.get(BLOCK_SIZE, 3, new byte[] { 3 }, read.clear()));
+  }
+
+  private static byte[] block(int value) {
+    final byte[] block = new byte[BLOCK_SIZE];
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) (value + i);
+    }
+    return block;
+  }
+
+}
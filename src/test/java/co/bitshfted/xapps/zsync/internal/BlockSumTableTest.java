@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class BlockSumTableTest {
+
+  // three blocks with 2 byte rsums and 3 byte checksums, the first and last block are identical
+  private static final byte[] SUMS = {
+      0x01, 0x02, 0x0a, 0x0b, 0x0c,
+      0x01, 0x02, 0x0a, 0x0b, 0x0d,
+      0x01, 0x02, 0x0a, 0x0b, 0x0c};
+
+  @Test
+  public void testRead() throws IOException {
+    final BlockSumTable table = BlockSumTable.read(new ByteArrayInputStream(SUMS), 3, 2, 3);
+    assertEquals(3, table.size());
+    assertEquals(3, table.getChecksumLength());
+    assertEquals(0x0102, table.getRsum(2));
+  }
+
+  /**
+   * Tests that read fails if the input ends before all block sums have been read
+   */
+  @Test(expected = IOException.class)
+  public void testReadPrematureEnd() throws IOException {
+    BlockSumTable.read(new ByteArrayInputStream(SUMS, 0, 13), 3, 2, 3);
+  }
+
+  /**
+   * Tests that all positions of identical blocks are returned in ascending order
+   */
+  @Test
+  public void testGetPositions() throws IOException {
+    final BlockSumTable table = BlockSumTable.read(new ByteArrayInputStream(SUMS), 3, 2, 3);
+    assertArrayEquals(new int[] {0, 2}, table.getPositions(sum(0x0102, 0x0a, 0x0b, 0x0c)));
+    assertArrayEquals(new int[] {1}, table.getPositions(sum(0x0102, 0x0a, 0x0b, 0x0d)));
+    assertArrayEquals(new int[0], table.getPositions(sum(0x0102, 0x0a, 0x0b, 0x0e)));
+    assertArrayEquals(new int[0], table.getPositions(sum(0x0103, 0x0a, 0x0b, 0x0c)));
+  }
+
+  @Test
+  public void testMatches() throws IOException {
+    final BlockSumTable table = BlockSumTable.read(new ByteArrayInputStream(SUMS), 3, 2, 3);
+    assertTrue(table.matches(1, sum(0x0102, 0x0a, 0x0b, 0x0d)));
+    assertFalse(table.matches(0, sum(0x0102, 0x0a, 0x0b, 0x0d)));
+  }
+
+  private static BlockSum sum(int rsum, int... checksum) {
+    final byte[] bytes = new byte[16];
+    for (int i = 0; i < checksum.length; i++) {
+      bytes[i] = (byte) checksum[i];
+    }
+    return new BlockSum() {
+      @Override
+      int getRsum() {
+        return rsum;
+      }
+
+      @Override
+      byte[] getChecksum() {
+        return bytes;
+      }
+
+      @Override
+      int getChecksumLength() {
+        return checksum.length;
+      }
+    };
+  }
+
+}
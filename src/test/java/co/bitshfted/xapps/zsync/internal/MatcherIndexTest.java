@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import static co.bitshfted.xapps.zsync.internal.util.ZsyncUtil.toLong;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MatcherIndexTest {
+
+  // blocks 1 and 3 share a rolling sum, as do the pairs ending at blocks 2 and 4
+  private static final int[] RSUMS = {5, 7, 9, 7, 9};
+
+  /**
+   * Tests that a rolling sum stays in the index until every block having it is complete
+   */
+  @Test
+  public void testSingle() {
+    final boolean[] completed = new boolean[RSUMS.length];
+    final MatcherIndex index = new MatcherIndex(blockSums(), false, completed);
+    complete(index, completed, 1);
+    assertTrue(index.containsRsum(7));
+    complete(index, completed, 3);
+    assertFalse(index.containsRsum(7));
+    complete(index, completed, 0);
+    complete(index, completed, 2);
+    assertFalse(index.containsRsum(5));
+    assertTrue(index.containsRsum(9));
+    assertFalse(index.isEmpty());
+    complete(index, completed, 4);
+    assertFalse(index.containsRsum(9));
+    assertTrue(index.isEmpty());
+  }
+
+  /**
+   * Tests that a pair stays in the index until both blocks of every pair having its rolling sums are complete
+   */
+  @Test
+  public void testPairs() {
+    final boolean[] completed = new boolean[RSUMS.length];
+    final MatcherIndex index = new MatcherIndex(blockSums(), true, completed);
+    complete(index, completed, 1);
+    complete(index, completed, 2);
+    assertTrue(index.containsRsumPair(toLong(7, 9)));
+    assertTrue(index.containsRsumPair(toLong(5, 7)));
+    complete(index, completed, 0);
+    assertFalse(index.containsRsumPair(toLong(5, 7)));
+    complete(index, completed, 4);
+    assertTrue(index.containsRsumPair(toLong(7, 9)));
+    assertTrue(index.containsRsumPair(toLong(9, 7)));
+    complete(index, completed, 3);
+    assertFalse(index.containsRsumPair(toLong(7, 9)));
+    assertFalse(index.containsRsumPair(toLong(9, 7)));
+    assertTrue(index.isEmpty());
+  }
+
+  /**
+   * Tests that blocks complete before the index is built are left out
+   */
+  @Test
+  public void testInitiallyCompleted() {
+    final boolean[] completed = {true, true, false, true, true};
+    final MatcherIndex single = new MatcherIndex(blockSums(), false, completed);
+    assertFalse(single.containsRsum(5));
+    assertFalse(single.containsRsum(7));
+    assertTrue(single.containsRsum(9));
+    final MatcherIndex pairs = new MatcherIndex(blockSums(), true, completed);
+    assertFalse(pairs.containsRsumPair(toLong(5, 7)));
+    assertTrue(pairs.containsRsumPair(toLong(7, 9)));
+    assertTrue(pairs.containsRsumPair(toLong(9, 7)));
+  }
+
+  private static BlockSumTable blockSums() {
+    return new BlockSumTable(RSUMS.clone(), new byte[RSUMS.length], 1);
+  }
+
+  // as done by the output file writer
+  private static void complete(MatcherIndex index, boolean[] completed, int position) {
+    completed[position] = true;
+    index.blockCompleted(position);
+  }
+
+}
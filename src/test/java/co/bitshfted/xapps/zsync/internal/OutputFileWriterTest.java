@@ -0,0 +1,528 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.bitshfted.xapps.zsync.ZsyncMake;
+import co.bitshfted.xapps.zsync.http.ContentRange;
+import co.bitshfted.xapps.zsync.http.RangePlan;
+import co.bitshfted.xapps.zsync.internal.util.DirectMD4;
+import co.bitshfted.xapps.zsync.internal.util.RollingBuffer;
+import co.bitshfted.xapps.zsync.internal.util.SliceInputStream;
+import co.bitshfted.xapps.zsync.internal.util.TransferListener.ResourceTransferListener;
+import co.bitshfted.xapps.zsync.internal.util.ZeroPaddedReadableByteChannel;
+import co.bitshfted.xapps.zsync.internal.util.ZsyncUtil;
+
+public class OutputFileWriterTest {
+
+  private static final int BLOCK_SIZE = 1024;
+
+  private Path directory;
+  private byte[] target;
+  private ControlFile controlFile;
+  private Path output;
+
+  @Before
+  public void setUp() throws IOException {
+    this.directory = Files.createTempDirectory("output-file-writer");
+    this.target = new byte[10 * BLOCK_SIZE + 500];
+    new Random(0).nextBytes(this.target);
+    this.controlFile = this.makeControlFile();
+    this.output = this.directory.resolve("output");
+  }
+
+  private ControlFile makeControlFile() throws IOException {
+    final Path targetFile = Files.write(this.directory.resolve("target"), this.target);
+    final Path zsyncFile = new ZsyncMake()
+        .writeToFile(targetFile, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE)).getOutputFile();
+    try (InputStream in = Files.newInputStream(zsyncFile)) {
+      return ControlFile.read(in);
+    } finally {
+      Files.delete(zsyncFile);
+      Files.delete(targetFile);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (var files = Files.list(this.directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(this.directory);
+  }
+
+  /**
+   * Tests that blocks received before the writer was closed incomplete are reused by the next writer
+   */
+  @Test
+  public void testResume() throws IOException {
+    this.interrupt(new ContentRange(0, 3 * BLOCK_SIZE - 1), new ContentRange(9 * BLOCK_SIZE, this.target.length - 1));
+
+    try (OutputFileWriter writer = this.open(true)) {
+      assertEquals(List.of(new ContentRange(3 * BLOCK_SIZE, 9 * BLOCK_SIZE - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(3 * BLOCK_SIZE, 9 * BLOCK_SIZE - 1));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+    assertFalse(Files.exists(this.directory.resolve("output.part.state")));
+  }
+
+  /**
+   * Tests that a block recorded as complete is fetched again if it was modified since
+   */
+  @Test
+  public void testResumeCorruptBlock() throws IOException {
+    this.interrupt(new ContentRange(0, 3 * BLOCK_SIZE - 1));
+    final Path part = this.directory.resolve("output.part");
+    final byte[] bytes = Files.readAllBytes(part);
+    bytes[BLOCK_SIZE + 7] ^= 1;
+    Files.write(part, bytes);
+
+    try (OutputFileWriter writer = this.open(true)) {
+      assertEquals(List.of(new ContentRange(BLOCK_SIZE, 2 * BLOCK_SIZE - 1),
+          new ContentRange(3 * BLOCK_SIZE, this.target.length - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(0, this.target.length - 1));
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that the state file is ignored unless resuming is enabled
+   */
+  @Test
+  public void testNoResume() throws IOException {
+    this.interrupt(new ContentRange(0, 3 * BLOCK_SIZE - 1));
+    try (OutputFileWriter writer = this.open(false)) {
+      assertEquals(List.of(new ContentRange(0, this.target.length - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(0, this.target.length - 1));
+    }
+  }
+
+  /**
+   * Tests that missing ranges separated by small gaps are fetched as one and that the completed blocks in the gap are
+   * overwritten without harm
+   */
+  @Test
+  public void testPlanMissingRanges() throws IOException {
+    this.interrupt(new ContentRange(BLOCK_SIZE, 2 * BLOCK_SIZE - 1), new ContentRange(4 * BLOCK_SIZE, 7 * BLOCK_SIZE - 1));
+
+    try (OutputFileWriter writer = this.open(true)) {
+      assertEquals(writer.getMissingRanges(), writer.planMissingRanges(BLOCK_SIZE - 1).getRanges());
+      final RangePlan plan = writer.planMissingRanges(BLOCK_SIZE);
+      assertEquals(List.of(new ContentRange(0, 4 * BLOCK_SIZE - 1), new ContentRange(7 * BLOCK_SIZE, this.target.length - 1)),
+          plan.getRanges());
+      assertEquals(BLOCK_SIZE, plan.getOverheadBytes());
+      assertEquals(1, plan.getRangesSaved());
+      for (ContentRange range : plan.getRanges()) {
+        this.receive(writer, range);
+      }
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that blocks received by one writer are taken from the block cache by another
+   */
+  @Test
+  public void testBlockCache() throws IOException {
+    final BlockCache blockCache = new BlockCache(this.directory.resolve("cache"), Long.MAX_VALUE);
+    try (OutputFileWriter writer = this.open(false, blockCache)) {
+      this.receive(writer, new ContentRange(0, 2 * BLOCK_SIZE - 1));
+      this.receive(writer, new ContentRange(2 * BLOCK_SIZE, this.target.length - 1));
+    }
+    Files.delete(this.output);
+
+    try (OutputFileWriter writer = this.open(false, blockCache)) {
+      assertTrue(writer.fillFromBlockCache());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+    this.deleteRecursively(this.directory.resolve("cache"));
+  }
+
+  /**
+   * Tests that closing an incomplete writer that took blocks from the cache leaves the cache unchanged, since the failed
+   * validation says nothing about the cached blocks
+   */
+  @Test
+  public void testBlockCacheIncomplete() throws IOException {
+    final BlockCache blockCache = new BlockCache(this.directory.resolve("cache"), Long.MAX_VALUE);
+    final OutputFileWriter first = this.open(false, blockCache);
+    this.receive(first, new ContentRange(0, 2 * BLOCK_SIZE - 1));
+    try {
+      first.close();
+      fail("expected checksum validation to fail for incomplete file");
+    } catch (ChecksumValidationIOException e) {
+      // expected
+    }
+
+    final OutputFileWriter second = this.open(false, blockCache);
+    assertFalse(second.fillFromBlockCache());
+    try {
+      second.close();
+      fail("expected checksum validation to fail for incomplete file");
+    } catch (BlockCacheValidationIOException e) {
+      fail("cached blocks blamed for incomplete file");
+    } catch (ChecksumValidationIOException e) {
+      // expected
+    }
+    final BlockSumTable blockSums = this.controlFile.getBlockSums();
+    for (int i = 0; i < 2; i++) {
+      assertTrue(blockCache.get(BLOCK_SIZE, blockSums.getRsum(i), blockSums.getChecksum(i),
+          ByteBuffer.allocate(BLOCK_SIZE)));
+    }
+    Files.delete(this.directory.resolve("output.part"));
+    this.deleteRecursively(this.directory.resolve("cache"));
+  }
+
+  /**
+   * Tests that a cached block merely sharing the truncated checksums of a wanted block is evicted once the output file
+   * fails validation
+   */
+  @Test
+  public void testBlockCacheCollision() throws IOException {
+    // one byte rsums and checksums, so that a colliding block is quickly found
+    final Header header = this.controlFile.getHeader();
+    final int numBlocks = header.getNumBlocks();
+    final int[] rsums = new int[numBlocks];
+    final byte[] checksums = new byte[numBlocks];
+    final DirectMD4 md4 = new DirectMD4();
+    for (int i = 0; i < numBlocks; i++) {
+      final byte[] block = Arrays.copyOfRange(this.target, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE);
+      rsums[i] = ZsyncUtil.computeRsum(block) & 0xff;
+      checksums[i] = md4.digest(block, 0, BLOCK_SIZE)[0];
+    }
+    this.controlFile = new ControlFile(new Header(header.getVersion(), header.getFilename(), header.getMtime(),
+        BLOCK_SIZE, header.getLength(), 1, 1, false, header.getUrl(), header.getSha1()),
+        new BlockSumTable(rsums, checksums, 1));
+    final Random random = new Random(1);
+    final byte[] collision = new byte[BLOCK_SIZE];
+    do {
+      random.nextBytes(collision);
+    } while ((ZsyncUtil.computeRsum(collision) & 0xff) != rsums[2]
+        || md4.digest(collision, 0, BLOCK_SIZE)[0] != checksums[2]);
+    final BlockCache blockCache = new BlockCache(this.directory.resolve("cache"), Long.MAX_VALUE);
+    blockCache.put(BLOCK_SIZE, rsums[2], new byte[] {checksums[2]}, ByteBuffer.wrap(collision));
+
+    final OutputFileWriter writer = this.open(false, blockCache);
+    assertFalse(writer.fillFromBlockCache());
+    this.receive(writer, new ContentRange(0, 2 * BLOCK_SIZE - 1));
+    this.receive(writer, new ContentRange(3 * BLOCK_SIZE, this.target.length - 1));
+    try {
+      writer.close();
+      fail("expected checksum validation to fail");
+    } catch (BlockCacheValidationIOException e) {
+      // expected
+    }
+    assertFalse(blockCache.get(BLOCK_SIZE, rsums[2], new byte[] {checksums[2]}, ByteBuffer.allocate(BLOCK_SIZE)));
+    Files.delete(this.directory.resolve("output.part"));
+    this.deleteRecursively(this.directory.resolve("cache"));
+  }
+
+  /**
+   * Tests that a seed with the length and SHA-1 of the output file is copied as a whole
+   */
+  @Test
+  public void testCopyIfIdentical() throws IOException {
+    final Path seed = Files.write(this.directory.resolve("seed"), this.target);
+    try (OutputFileWriter writer = this.open(false); FileChannel channel = FileChannel.open(seed)) {
+      assertTrue(writer.copyIfIdentical(channel));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+
+    final byte[] modified = this.target.clone();
+    modified[5 * BLOCK_SIZE] ^= 1;
+    Files.write(seed, modified);
+    try (OutputFileWriter writer = this.open(false); FileChannel channel = FileChannel.open(seed)) {
+      assertFalse(writer.copyIfIdentical(channel));
+      assertFalse(writer.isComplete());
+      this.receive(writer, new ContentRange(0, this.target.length - 1));
+    }
+  }
+
+  /**
+   * Tests that blocks of the seed found at their own offset are taken, including the zero padded last block
+   */
+  @Test
+  public void testCopyAlignedBlocks() throws IOException {
+    final byte[] modified = new byte[this.target.length + 100];
+    System.arraycopy(this.target, 0, modified, 0, this.target.length);
+    modified[2 * BLOCK_SIZE + 3] ^= 1;
+    modified[7 * BLOCK_SIZE] ^= 1;
+    final Path seed = Files.write(this.directory.resolve("seed"), modified);
+
+    try (OutputFileWriter writer = this.open(false); FileChannel channel = FileChannel.open(seed)) {
+      final boolean[] matched = writer.copyAlignedBlocks(channel);
+      assertArrayEquals(new boolean[] {true, true, false, true, true, true, true, false, true, true, true}, matched);
+      assertEquals(List.of(new ContentRange(2 * BLOCK_SIZE, 3 * BLOCK_SIZE - 1),
+          new ContentRange(7 * BLOCK_SIZE, 8 * BLOCK_SIZE - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(2 * BLOCK_SIZE, 3 * BLOCK_SIZE - 1));
+      this.receive(writer, new ContentRange(7 * BLOCK_SIZE, 8 * BLOCK_SIZE - 1));
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that runs of blocks written by the matchers reach the output file, including when the writer is closed
+   * incomplete and the next writer resumes from the saved state
+   */
+  @Test
+  public void testWriteBlockRuns() throws IOException {
+    try (OutputFileWriter writer = this.open(true)) {
+      this.writeBlocks(writer, 0, 1, 2, 4, 5, 9);
+      writer.close();
+      fail("expected checksum validation to fail for incomplete file");
+    } catch (ChecksumValidationIOException e) {
+      // expected
+    }
+    try (OutputFileWriter writer = this.open(true)) {
+      assertEquals(List.of(new ContentRange(3 * BLOCK_SIZE, 4 * BLOCK_SIZE - 1),
+          new ContentRange(6 * BLOCK_SIZE, 9 * BLOCK_SIZE - 1), new ContentRange(10 * BLOCK_SIZE, this.target.length - 1)),
+          writer.getMissingRanges());
+      this.writeBlocks(writer, 10, 8, 3, 6, 7);
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that a received block not matching its checksums is left missing when verifying blocks
+   */
+  @Test
+  public void testVerifyBlocks() throws IOException {
+    try (OutputFileWriter writer = this.open(false, null, true)) {
+      final byte[] corrupt = this.target.clone();
+      corrupt[4 * BLOCK_SIZE + 9] ^= 1;
+      writer.receive(new ContentRange(0, this.target.length - 1), new ByteArrayInputStream(corrupt));
+      assertEquals(List.of(new ContentRange(4 * BLOCK_SIZE, 5 * BLOCK_SIZE - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(4 * BLOCK_SIZE, 5 * BLOCK_SIZE - 1));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that blocks received as slices are verified whether a block arrives in one slice, including slices of a
+   * direct buffer, or straddles two
+   */
+  @Test
+  public void testVerifyBlockSlices() throws IOException {
+    final byte[] corrupt = this.target.clone();
+    corrupt[2 * BLOCK_SIZE + 9] ^= 1;
+    corrupt[4 * BLOCK_SIZE + 9] ^= 1;
+    final ByteBuffer direct = ByteBuffer.allocateDirect(corrupt.length).put(corrupt).flip();
+    try (OutputFileWriter writer = this.open(false, null, true)) {
+      writer.receive(new ContentRange(0, 5 * BLOCK_SIZE - 1), slices(direct.limit(5 * BLOCK_SIZE), BLOCK_SIZE));
+      writer.receive(new ContentRange(5 * BLOCK_SIZE, this.target.length - 1),
+          slices(ByteBuffer.wrap(this.target, 5 * BLOCK_SIZE, this.target.length - 5 * BLOCK_SIZE), 300));
+      assertEquals(List.of(new ContentRange(2 * BLOCK_SIZE, 3 * BLOCK_SIZE - 1),
+          new ContentRange(4 * BLOCK_SIZE, 5 * BLOCK_SIZE - 1)), writer.getMissingRanges());
+      this.receive(writer, new ContentRange(2 * BLOCK_SIZE, 3 * BLOCK_SIZE - 1));
+      this.receive(writer, new ContentRange(4 * BLOCK_SIZE, 5 * BLOCK_SIZE - 1));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that a range covering a complete block again does not overwrite it, whether received as a stream or as
+   * slices, so that the block cannot change after it was included in the SHA-1
+   */
+  @Test
+  public void testCompleteBlockNotOverwritten() throws IOException {
+    final byte[] changed = this.target.clone();
+    changed[BLOCK_SIZE + 5] ^= 1;
+    changed[6 * BLOCK_SIZE + 5] ^= 1;
+    try (OutputFileWriter writer = this.open(false, null, false)) {
+      this.receive(writer, new ContentRange(0, 2 * BLOCK_SIZE - 1));
+      this.receive(writer, new ContentRange(6 * BLOCK_SIZE, 7 * BLOCK_SIZE - 1));
+      writer.receive(new ContentRange(0, 5 * BLOCK_SIZE - 1), new ByteArrayInputStream(changed, 0, 5 * BLOCK_SIZE));
+      writer.receive(new ContentRange(5 * BLOCK_SIZE, this.target.length - 1),
+          slices(ByteBuffer.wrap(changed, 5 * BLOCK_SIZE, this.target.length - 5 * BLOCK_SIZE), 300));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  // hands out the bytes in slices of the given size, not aligned to blocks
+  private static SliceInputStream slices(ByteBuffer buffer, int size) {
+    return new SliceInputStream() {
+      @Override
+      public ByteBuffer readSlice(int max) {
+        if (!buffer.hasRemaining()) {
+          return null;
+        }
+        final ByteBuffer slice = buffer.slice().limit(Math.min(max, Math.min(size, buffer.remaining())));
+        buffer.position(buffer.position() + slice.remaining());
+        return slice;
+      }
+    };
+  }
+
+  /**
+   * Tests that a longer temporary output file left behind is cut to the length of the output file
+   */
+  @Test
+  public void testTruncate() throws IOException {
+    Files.write(this.directory.resolve("output.part"), new byte[this.target.length + 3 * BLOCK_SIZE]);
+    try (OutputFileWriter writer = this.open(false)) {
+      this.receive(writer, new ContentRange(BLOCK_SIZE, this.target.length - 1));
+      this.receive(writer, new ContentRange(0, BLOCK_SIZE - 1));
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that blocks of zeros, including a short last block, are filled in without being received
+   */
+  @Test
+  public void testZeroBlocks() throws IOException {
+    Arrays.fill(this.target, 3 * BLOCK_SIZE, 6 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(this.target, 8 * BLOCK_SIZE, 9 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(this.target, 10 * BLOCK_SIZE, this.target.length, (byte) 0);
+    this.controlFile = this.makeControlFile();
+    // with sequential matches, the zero block without a zero neighbour is not trusted and downloaded instead
+    assertTrue(this.controlFile.getHeader().isSeqMatches());
+    assertArrayEquals(new int[] {3, 4, 5, 10}, this.controlFile.getZeroBlocks());
+
+    try (OutputFileWriter writer = this.open(false)) {
+      assertEquals(List.of(new ContentRange(0, 3 * BLOCK_SIZE - 1), new ContentRange(6 * BLOCK_SIZE, 10 * BLOCK_SIZE - 1)),
+          writer.getMissingRanges());
+      this.receive(writer, new ContentRange(6 * BLOCK_SIZE, 10 * BLOCK_SIZE - 1));
+      this.receive(writer, new ContentRange(0, 3 * BLOCK_SIZE - 1));
+    }
+    assertArrayEquals(this.target, Files.readAllBytes(this.output));
+  }
+
+  /**
+   * Tests that the matcher index drops the sums of blocks completed after it was built
+   */
+  @Test
+  public void testMatcherIndex() throws IOException {
+    // the control file was made with sequential matches
+    this.interrupt(new ContentRange(0, 2 * BLOCK_SIZE - 1));
+    try (OutputFileWriter writer = this.open(true)) {
+      final MatcherIndex index = writer.getMatcherIndex();
+      assertFalse(index.containsRsumPair(this.pair(1)));
+      assertTrue(index.containsRsumPair(this.pair(2)));
+      this.receive(writer, new ContentRange(2 * BLOCK_SIZE, 4 * BLOCK_SIZE - 1));
+      assertFalse(index.containsRsumPair(this.pair(2)));
+      assertFalse(index.containsRsumPair(this.pair(3)));
+      assertTrue(index.containsRsumPair(this.pair(4)));
+      assertFalse(index.isEmpty());
+      this.receive(writer, new ContentRange(0, this.target.length - 1));
+      assertTrue(index.isEmpty());
+    }
+  }
+
+  private long pair(int last) {
+    final BlockSumTable blockSums = this.controlFile.getBlockSums();
+    return ZsyncUtil.toLong(blockSums.getRsum(last - 1), blockSums.getRsum(last));
+  }
+
+  // writes the given blocks as a block matcher does, from a window over the zero padded target
+  private void writeBlocks(OutputFileWriter writer, int... positions) throws IOException {
+    for (int position : positions) {
+      final ReadableByteChannel channel = new ZeroPaddedReadableByteChannel(
+          Channels.newChannel(new ByteArrayInputStream(this.target)), BLOCK_SIZE - this.target.length % BLOCK_SIZE);
+      final RollingBuffer buffer = new RollingBuffer(channel, BLOCK_SIZE, 4 * BLOCK_SIZE);
+      for (int i = 0; i < position; i++) {
+        buffer.advance(BLOCK_SIZE);
+      }
+      assertTrue(writer.writeBlock(position, buffer));
+    }
+  }
+
+  private void interrupt(ContentRange... ranges) throws IOException {
+    final OutputFileWriter writer = this.open(true);
+    for (ContentRange range : ranges) {
+      this.receive(writer, range);
+    }
+    try {
+      writer.close();
+      fail("expected checksum validation to fail for incomplete file");
+    } catch (ChecksumValidationIOException e) {
+      // expected
+    }
+    assertTrue(Files.exists(this.directory.resolve("output.part.state")));
+  }
+
+  private OutputFileWriter open(boolean resume) throws IOException {
+    return this.open(resume, null);
+  }
+
+  private OutputFileWriter open(boolean resume, BlockCache blockCache) throws IOException {
+    return this.open(resume, blockCache, false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private OutputFileWriter open(boolean resume, BlockCache blockCache, boolean verifyBlocks) throws IOException {
+    return new OutputFileWriter(this.output, this.controlFile, mock(ResourceTransferListener.class), resume,
+        blockCache, verifyBlocks);
+  }
+
+  private void deleteRecursively(Path path) throws IOException {
+    try (var files = Files.walk(path)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private void receive(OutputFileWriter writer, ContentRange range) throws IOException {
+    writer.receive(range,
+        new ByteArrayInputStream(this.target, (int) range.first(), (int) range.length()));
+  }
+
+}
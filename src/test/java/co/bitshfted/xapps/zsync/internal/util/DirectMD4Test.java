@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DirectMD4Test {
+
+  /**
+   * Tests the digests of the RFC 1320 test suite
+   */
+  @Test
+  public void testRfc1320() {
+    assertDigest("31d6cfe0d16ae931b73c59d7e0c089c0", "");
+    assertDigest("bde52cb31de33e46245e05fbdbd6fb24", "a");
+    assertDigest("a448017aaf21d8525fc10ae87aa6729d", "abc");
+    assertDigest("d9130a8164549fe818874806e1c7014b", "message digest");
+    assertDigest("d79e1c308aa5bbcdeea8ed63df412da9", "abcdefghijklmnopqrstuvwxyz");
+    assertDigest("043f8582f241db351ce627e153e7f0e4",
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789");
+    assertDigest("e33b4ddc9c38f2199c3e7b164fcc0536",
+        "12345678901234567890123456789012345678901234567890123456789012345678901234567890");
+  }
+
+  /**
+   * Tests that digests match the message digest implementation for all padding cases, whether the input is passed at
+   * once or piecemeal, in arrays or in heap and direct buffers of either byte order
+   */
+  @Test
+  public void testMatchesMessageDigest() {
+    final MessageDigest expected = ZsyncUtil.newMD4();
+    final DirectMD4 md4 = new DirectMD4();
+    final Random random = new Random(0);
+    final byte[] data = new byte[300];
+    random.nextBytes(data);
+    final byte[] out = new byte[DirectMD4.DIGEST_LENGTH];
+    for (int length = 0; length <= 260; length++) {
+      expected.update(data, 3, length);
+      final byte[] digest = expected.digest();
+
+      assertArrayEquals(digest, md4.digest(data, 3, length));
+
+      md4.digest(data, 3, length, out, 0, out.length);
+      assertArrayEquals(digest, out);
+
+      final int split = random.nextInt(length + 1);
+      md4.update(data, 3, split);
+      md4.update(data, 3 + split, length - split);
+      md4.finish(out, 0, out.length);
+      assertArrayEquals(digest, out);
+
+      for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(length + 7),
+          ByteBuffer.allocateDirect(length + 7), ByteBuffer.allocateDirect(length + 7).order(ByteOrder.LITTLE_ENDIAN)}) {
+        buffer.position(7);
+        buffer.put(data, 3, length);
+        buffer.position(7);
+        buffer.limit(7 + split);
+        md4.update(buffer);
+        assertEquals(7 + split, buffer.position());
+        buffer.limit(7 + length);
+        md4.update(buffer);
+        assertEquals(7 + length, buffer.position());
+        md4.finish(out, 0, out.length);
+        assertArrayEquals(digest, out);
+      }
+    }
+  }
+
+  /**
+   * Tests that digests still match once the block path is compiled by the optimizing compiler
+   */
+  @Test
+  public void testManyBlocks() {
+    final MessageDigest expected = ZsyncUtil.newMD4();
+    final DirectMD4 md4 = new DirectMD4();
+    final byte[] block = new byte[2048];
+    final Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      random.nextBytes(block);
+      assertArrayEquals(expected.digest(block), md4.digest(block, 0, block.length));
+    }
+  }
+
+  /**
+   * Tests that only the requested leading bytes of the digest are written
+   */
+  @Test
+  public void testTruncatedOutput() {
+    final byte[] out = new byte[6];
+    new DirectMD4().digest("abc".getBytes(US_ASCII), 0, 3, out, 1, 4);
+    assertArrayEquals(new byte[] {0, (byte) 0xa4, 0x48, 0x01, 0x7a, 0}, out);
+  }
+
+  private static void assertDigest(String expected, String message) {
+    final byte[] bytes = message.getBytes(US_ASCII);
+    assertEquals(expected, ZsyncUtil.toHexString(ByteBuffer.wrap(new DirectMD4().digest(bytes, 0, bytes.length))));
+  }
+}
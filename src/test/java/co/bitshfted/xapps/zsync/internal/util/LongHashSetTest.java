@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+  /**
+   * Tests that zero, which marks free slots internally, can be stored like any other value
+   */
+  @Test
+  public void testZero() {
+    final LongHashSet set = new LongHashSet();
+    assertFalse(set.contains(0));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+    assertEquals(1, set.size());
+  }
+
+  /**
+   * Tests that the set behaves like a {@link HashSet} while growing from its initial capacity
+   */
+  @Test
+  public void testAgainstHashSet() {
+    final Random random = new Random(42);
+    final LongHashSet set = new LongHashSet(1);
+    final Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 10000; i++) {
+      // narrow range to provoke duplicates
+      final long value = random.nextInt(20000) - 10000;
+      assertEquals(expected.add(value), set.add(value));
+    }
+    assertEquals(expected.size(), set.size());
+    for (long value = -12000; value < 12000; value++) {
+      assertEquals(expected.contains(value), set.contains(value));
+    }
+  }
+
+  /**
+   * Tests that values differing only in high bits are kept apart
+   */
+  @Test
+  public void testHighBits() {
+    final LongHashSet set = new LongHashSet();
+    for (int i = 1; i < 1024; i++) {
+      set.add((long) i << 32);
+    }
+    assertEquals(1023, set.size());
+    assertFalse(set.contains(1));
+    assertTrue(set.contains(1L << 32));
+  }
+
+  /**
+   * Tests that removals and re-additions behave like a {@link HashSet}, also across rehashing
+   */
+  @Test
+  public void testRemove() {
+    final Random random = new Random(7);
+    final LongHashSet set = new LongHashSet(1);
+    final Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 20000; i++) {
+      final long value = random.nextInt(2000) - 1000;
+      if (random.nextBoolean()) {
+        assertEquals(expected.add(value), set.add(value));
+      } else {
+        assertEquals(expected.remove(value), set.remove(value));
+      }
+      assertEquals(expected.size(), set.size());
+    }
+    for (long value = -1200; value < 1200; value++) {
+      assertEquals(expected.contains(value), set.contains(value));
+    }
+  }
+
+  /**
+   * Tests that removing a value does not hide values placed after it in the same probe sequence
+   */
+  @Test
+  public void testRemoveKeepsCollisions() {
+    final LongHashSet set = new LongHashSet(4);
+    for (int i = 1; i <= 4; i++) {
+      set.add((long) i << 24);
+    }
+    assertTrue(set.remove((long) 1 << 24));
+    assertFalse(set.remove((long) 1 << 24));
+    assertFalse(set.contains((long) 1 << 24));
+    for (int i = 2; i <= 4; i++) {
+      assertTrue(set.contains((long) i << 24));
+    }
+    assertFalse(set.remove(0));
+  }
+
+  @Test
+  public void testClear() {
+    final LongHashSet set = new LongHashSet();
+    set.add(0);
+    set.add(7);
+    set.clear();
+    assertTrue(set.isEmpty());
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(7));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeExpectedSize() {
+    new LongHashSet(-1);
+  }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static java.nio.channels.Channels.newChannel;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedRollingBufferTest {
+
+  private Path file;
+  private FileChannel channel;
+
+  @Before
+  public void setUp() throws IOException {
+    final byte[] data = new byte[100];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    this.file = Files.createTempFile("mapped", null);
+    Files.write(this.file, data);
+    this.channel = FileChannel.open(this.file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    this.channel.close();
+    Files.deleteIfExists(this.file);
+  }
+
+  /**
+   * Tests that constructor throws IAE if the region has insufficient bytes to initialize window
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorRegionTooSmall() throws IOException {
+    new MappedRollingBuffer(this.channel, 10, 12, 1, 4, 8, null);
+  }
+
+  /**
+   * Tests that constructor throws IAE if map size is too small relative to window
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorMapSizeTooSmall() throws IOException {
+    new MappedRollingBuffer(this.channel, 0, 100, 0, 4, 7, null);
+  }
+
+  /**
+   * Tests that rolling buffer cannot advance beyond current window
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testAdvanceBeyondWindow() throws IOException {
+    new MappedRollingBuffer(this.channel, 0, 100, 0, 4, 8, null).advance(5);
+  }
+
+  /**
+   * Tests that the window sees every byte of the region as it rolls across mapped sections
+   */
+  @Test
+  public void testAdvanceAcrossSections() throws IOException {
+    final MappedRollingBuffer b = new MappedRollingBuffer(this.channel, 5, 95, 0, 4, 8, null);
+    int position = 5;
+    do {
+      for (int i = 0; i < b.length(); i++) {
+        assertEquals((byte) (position + i), b.get(i));
+      }
+      position++;
+    } while (b.advance(1));
+    assertEquals(92, position);
+  }
+
+  /**
+   * Tests that zeros are returned past the end of the region
+   */
+  @Test
+  public void testPadding() throws IOException {
+    final MappedRollingBuffer b = new MappedRollingBuffer(this.channel, 90, 100, 2, 4, 8, null);
+    assertTrue(b.advance(4));
+    assertTrue(b.advance(4));
+    assertEquals((byte) 98, b.get(0));
+    assertEquals((byte) 99, b.get(1));
+    assertEquals((byte) 0, b.get(2));
+    assertEquals((byte) 0, b.get(3));
+    assertFalse(b.advance(1));
+  }
+
+  /**
+   * Tests that writing the window includes the padding
+   */
+  @Test
+  public void testWriteWithPadding() throws IOException {
+    final MappedRollingBuffer b = new MappedRollingBuffer(this.channel, 96, 100, 3, 4, 8, null);
+    assertTrue(b.advance(3));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    b.write(newChannel(out));
+    b.write(newChannel(out), 1, 2);
+    assertArrayEquals(new byte[] {99, 0, 0, 0, 0, 0}, out.toByteArray());
+  }
+
+  /**
+   * Tests that each byte of the region is reported to the listener exactly once
+   */
+  @Test
+  public void testListener() throws IOException {
+    final long[] transferred = new long[1];
+    final TransferListener listener = new TransferListener() {
+      @Override
+      public void transferred(long bytes) {
+        transferred[0] += bytes;
+      }
+
+      @Override
+      public void close() {}
+    };
+    final MappedRollingBuffer b = new MappedRollingBuffer(this.channel, 0, 100, 0, 4, 8, listener);
+    while (b.advance(3)) {
+    }
+    assertEquals(100, transferred[0]);
+  }
+
+}
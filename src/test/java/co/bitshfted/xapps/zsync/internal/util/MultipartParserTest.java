@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import co.bitshfted.xapps.zsync.http.ContentRange;
+
+public class MultipartParserTest {
+
+  private static final String BOUNDARY = "gc0p4Jq0M2Yt08jU534c0p";
+
+  /**
+   * Tests that the payload of each part is returned, whatever the size of the buffer and of the reads from the body
+   */
+  @Test
+  public void testParts() throws IOException {
+    final byte[] data = new byte[10000];
+    new Random(0).nextBytes(data);
+    final byte[] body = body(data, "preamble\r\n", new ContentRange(0, 99), new ContentRange(5000, 9999),
+        new ContentRange(200, 200));
+
+    for (int bufferSize : new int[] {1, 50, 4096, 65536}) {
+      for (int chunkSize : new int[] {1, 7, 1024, Integer.MAX_VALUE}) {
+        final MultipartParser parser = parser(body, bufferSize, chunkSize);
+        assertPart(parser, data, new ContentRange(0, 99));
+        assertPart(parser, data, new ContentRange(5000, 9999));
+        assertPart(parser, data, new ContentRange(200, 200));
+        assertNull(parser.nextPart());
+        assertNull(parser.nextPart());
+      }
+    }
+  }
+
+  /**
+   * Tests that payload left unread is skipped when advancing to the next part
+   */
+  @Test
+  public void testSkipPayload() throws IOException {
+    final byte[] data = new byte[1000];
+    new Random(1).nextBytes(data);
+    final MultipartParser parser =
+        parser(body(data, "", new ContentRange(0, 499), new ContentRange(500, 999)), 64, 13);
+
+    assertEquals(new ContentRange(0, 499), parser.nextPart());
+    assertEquals(data[0], (byte) parser.payload().read());
+    assertPart(parser, data, new ContentRange(500, 999));
+    assertNull(parser.nextPart());
+  }
+
+  /**
+   * Tests that payload slices share the parser buffer rather than being copied
+   */
+  @Test
+  public void testSlices() throws IOException {
+    final byte[] data = new byte[100];
+    new Random(2).nextBytes(data);
+    final MultipartParser parser = parser(body(data, "", new ContentRange(0, 99)), 4096, Integer.MAX_VALUE);
+
+    assertEquals(new ContentRange(0, 99), parser.nextPart());
+    final SliceInputStream in = parser.payload();
+    final ByteBuffer slice = in.readSlice(Integer.MAX_VALUE);
+    assertEquals(100, slice.remaining());
+    assertEquals(true, slice.hasArray());
+    assertEquals(ByteBuffer.wrap(data), slice);
+    assertNull(in.readSlice(1));
+  }
+
+  /**
+   * Tests that a body ending within a part is reported
+   */
+  @Test
+  public void testTruncated() throws IOException {
+    final byte[] data = new byte[1000];
+    final byte[] body = body(data, "", new ContentRange(0, 999));
+    final byte[] truncated = new byte[body.length - BOUNDARY.length() - 300];
+    System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+    final MultipartParser parser = parser(truncated, 256, Integer.MAX_VALUE);
+    assertEquals(new ContentRange(0, 999), parser.nextPart());
+    try {
+      parser.payload().readAllBytes();
+      fail("expected truncated payload to fail");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Tests that a part without Content-Range header is rejected
+   */
+  @Test(expected = IOException.class)
+  public void testMissingContentRange() throws IOException {
+    final String body = "--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\n\r\nabc\r\n--" + BOUNDARY + "--\r\n";
+    parser(body.getBytes(ISO_8859_1), 256, Integer.MAX_VALUE).nextPart();
+  }
+
+  /**
+   * Tests that a body without delimiter is rejected
+   */
+  @Test(expected = IOException.class)
+  public void testMissingDelimiter() throws IOException {
+    parser("--other\r\nContent-Range: bytes 0-0/1\r\n\r\na\r\n".getBytes(ISO_8859_1), 256, 3).nextPart();
+  }
+
+  private static void assertPart(MultipartParser parser, byte[] data, ContentRange range) throws IOException {
+    assertEquals(range, parser.nextPart());
+    final byte[] expected = new byte[(int) range.length()];
+    System.arraycopy(data, (int) range.first(), expected, 0, expected.length);
+    assertArrayEquals(expected, parser.payload().readAllBytes());
+  }
+
+  private static MultipartParser parser(byte[] body, int bufferSize, int chunkSize) {
+    final InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, chunkSize));
+      }
+    };
+    return new MultipartParser(in, BOUNDARY.getBytes(ISO_8859_1), bufferSize);
+  }
+
+  private static byte[] body(byte[] data, String preamble, ContentRange... ranges) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.writeBytes(preamble.getBytes(ISO_8859_1));
+    for (ContentRange range : ranges) {
+      out.writeBytes(("--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\ncontent-range: bytes "
+          + range.first() + "-" + range.last() + "/" + data.length + "\r\n\r\n").getBytes(ISO_8859_1));
+      out.write(data, (int) range.first(), (int) range.length());
+      out.writeBytes("\r\n".getBytes(ISO_8859_1));
+    }
+    out.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(ISO_8859_1));
+    return out.toByteArray();
+  }
+}
@@ -104,12 +104,12 @@ public class ObservableInputStreamTest {
     EventLogHttpTransferListener listener = new EventLogHttpTransferListener();
     final URI uri = URI.create("http://host/path");
 
-    HttpResponse<byte[]> mockResponse = mock(HttpResponse.class);
+    HttpResponse<InputStream> mockResponse = mock(HttpResponse.class);
     HttpRequest request = HttpRequest.newBuilder(uri).build();
     when(mockResponse.request()).thenReturn(request);
 
     InputStream in =
-        new ObservableInputStream.ObservableResourceInputStream<HttpResponse<byte[]>>(new ByteArrayInputStream(new byte[0]), listener, mockResponse, 1l);
+        new ObservableInputStream.ObservableResourceInputStream<HttpResponse<InputStream>>(new ByteArrayInputStream(new byte[0]), listener, mockResponse, 1l);
     in.close();
     assertEquals(List.of(new Started(uri, 1l), Closed.INSTANCE), listener.getEventLog());
   }
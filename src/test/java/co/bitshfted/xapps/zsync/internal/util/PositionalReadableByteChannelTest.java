@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * Copyright (c) 2020, Bitshift (bitshifted.co), Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package co.bitshfted.xapps.zsync.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests various cases of {@link PositionalReadableByteChannel}
+ */
+public class PositionalReadableByteChannelTest {
+
+  private Path file;
+  private FileChannel fileChannel;
+
+  @Before
+  public void setUp() throws IOException {
+    this.file = Files.createTempFile("positional", null);
+    Files.write(this.file, new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+    this.fileChannel = FileChannel.open(this.file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    this.fileChannel.close();
+    Files.delete(this.file);
+  }
+
+  /**
+   * Test that only the bytes of the region are read, even if the buffer has more room
+   */
+  @Test
+  public void testReadRegion() throws IOException {
+    final PositionalReadableByteChannel channel = new PositionalReadableByteChannel(this.fileChannel, 3, 7);
+    final ByteBuffer buffer = ByteBuffer.allocate(8);
+
+    assertEquals(4, channel.read(buffer));
+    assertEquals(-1, channel.read(buffer));
+    buffer.flip();
+    final byte[] b = new byte[buffer.remaining()];
+    buffer.get(b);
+    assertArrayEquals(new byte[] {3, 4, 5, 6}, b);
+  }
+
+  /**
+   * Test that the region is read in pieces if the buffer is smaller than the region
+   */
+  @Test
+  public void testReadInPieces() throws IOException {
+    final PositionalReadableByteChannel channel = new PositionalReadableByteChannel(this.fileChannel, 0, 10);
+    final ByteBuffer buffer = ByteBuffer.allocate(4);
+
+    assertEquals(4, channel.read(buffer));
+    buffer.clear();
+    assertEquals(4, channel.read(buffer));
+    assertEquals(4, buffer.get(0));
+    buffer.clear();
+    assertEquals(2, channel.read(buffer));
+    assertEquals(-1, channel.read(buffer));
+  }
+
+  /**
+   * Test that reading a region neither moves nor closes the underlying channel
+   */
+  @Test
+  public void testUnderlyingChannelUntouched() throws IOException {
+    final PositionalReadableByteChannel channel = new PositionalReadableByteChannel(this.fileChannel, 5, 10);
+    channel.read(ByteBuffer.allocate(10));
+    channel.close();
+
+    assertEquals(0, this.fileChannel.position());
+    assertTrue(this.fileChannel.isOpen());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRegion() {
+    new PositionalReadableByteChannel(this.fileChannel, 5, 4);
+  }
+
+}
@@ -42,12 +42,17 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static co.bitshfted.xapps.zsync.internal.util.EventLogHttpTransferListener.*;
 import static co.bitshfted.xapps.zsync.internal.util.ZsyncClient.*;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 public class ZsyncClientTest {
@@ -185,8 +190,9 @@ public class ZsyncClientTest {
     HttpResponse mockResponse = mock(HttpResponse.class);
     when(mockHttpClient.send(any(HttpRequest.class), any())).thenReturn(mockResponse);
     when(mockResponse.statusCode()).thenReturn(200);
+    when(mockResponse.headers()).thenReturn(HttpHeaders.of(Map.of("Content-Length", List.of("10")), (s1, s2) -> true));
 
-    byte[] responseBody = new byte[0];
+    InputStream responseBody = new ByteArrayInputStream(new byte[0]);
     when(mockResponse.body()).thenReturn(responseBody);
     RangeReceiver mockReceiver = mock(RangeReceiver.class);
     RangeTransferListener listener = mock(RangeTransferListener.class);
@@ -254,8 +260,8 @@ public class ZsyncClientTest {
 
     final byte[] data = new byte[17];
     final HttpResponse response = mock(HttpResponse.class);
-    when(response.body()).thenReturn(data);
-    final InputStream inputStream = new ByteArrayInputStream(data);
+    when(response.body()).thenReturn(new ByteArrayInputStream(data));
+    when(response.headers()).thenReturn(HttpHeaders.of(Map.of("Content-Length", List.of(String.valueOf(data.length))), (s1, s2) -> true));
 
     HttpRequest request = HttpRequest.newBuilder(uri).build();
     final HttpClient mockHttpClient = mock(HttpClient.class);
@@ -293,8 +299,7 @@ public class ZsyncClientTest {
     when(mockResponse.statusCode()).thenReturn(401, 200, 200);
     HttpHeaders headers = HttpHeaders.of(Map.of("WWW-Authenticate", List.of("something")), ((s1,s2) -> true));
     when(mockResponse.headers()).thenReturn(headers);
-    byte[] body = new byte[0];
-    when(mockResponse.body()).thenReturn(body);
+    when(mockResponse.body()).thenReturn(new ByteArrayInputStream(new byte[0]));
     zsyncClient.get(uri, credentials, listener);
 
     // subsequent https calls to same host should auth right away without challenge
@@ -303,6 +308,520 @@ public class ZsyncClientTest {
   }
 
 
+  @Test
+  public void testMultiPartBodyStreamed() throws Exception {
+    final String body = "--bnd\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-3/10\r\n\r\nabcd"
+        + "\r\n--bnd\r\nContent-Range: bytes 6-9/10\r\n\r\nghij\r\n--bnd--\r\n";
+    final HttpResponse response = mock(HttpResponse.class);
+    when(response.body()).thenReturn(new ByteArrayInputStream(body.getBytes(ISO_8859_1)));
+    when(response.headers()).thenReturn(HttpHeaders.of(Map.of(), (s1, s2) -> true));
+    final Set<ContentRange> remaining = new HashSet<>(List.of(new ContentRange(0, 3), new ContentRange(6, 9)));
+    final Map<ContentRange, String> received = new HashMap<>();
+
+    ZsyncClient.handleMultiPartBody(response, (range, in) -> received.put(range, new String(in.readAllBytes(), ISO_8859_1)),
+        remaining, mock(HttpTransferListener.class), "bnd".getBytes(ISO_8859_1));
+
+    assertEquals(Map.of(new ContentRange(0, 3), "abcd", new ContentRange(6, 9), "ghij"), received);
+    assertEquals(Collections.emptySet(), remaining);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testConcurrentPartialGet() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final Set<String> requestedRangeHeaders = ConcurrentHashMap.newKeySet();
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenAnswer(invocation -> {
+      final HttpRequest request = invocation.getArgument(0);
+      final String rangeHeader = request.headers().firstValue("Range").get();
+      requestedRangeHeaders.add(rangeHeader);
+      final StringBuilder body = new StringBuilder();
+      for (String range : rangeHeader.substring("bytes=".length()).split(",")) {
+        final String[] bounds = range.split("-");
+        final int length = Integer.parseInt(bounds[1]) - Integer.parseInt(bounds[0]) + 1;
+        body.append("\r\n--bnd\r\nContent-Range: bytes ").append(range).append("/*\r\n\r\n").append("x".repeat(length));
+      }
+      body.append("\r\n--bnd--\r\n");
+      final HttpResponse response = mock(HttpResponse.class);
+      when(response.statusCode()).thenReturn(206);
+      when(response.headers()).thenReturn(
+          HttpHeaders.of(Map.of("Content-Type", List.of("multipart/byteranges; boundary=bnd")), (s1, s2) -> true));
+      when(response.body()).thenReturn(new ByteArrayInputStream(body.toString().getBytes(ISO_8859_1)));
+      return response;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> ranges = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      ranges.add(new ContentRange(i * 20, i * 20 + 9));
+    }
+    final Set<ContentRange> received = ConcurrentHashMap.newKeySet();
+
+    new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), ranges, Collections.emptyMap(),
+        (range, in) -> {
+          assertEquals(range.length(), in.readAllBytes().length);
+          received.add(range);
+        }, listener, 3);
+
+    assertEquals(new HashSet<>(ranges), received);
+    assertEquals(3, requestedRangeHeaders.size());
+  }
+
+  /**
+   * Tests that ranges are requested one per request, so that every response is a single part
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSingleRangePerRequest() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final Set<String> requestedRangeHeaders = ConcurrentHashMap.newKeySet();
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenAnswer(invocation -> {
+      final HttpRequest request = invocation.getArgument(0);
+      final String range = request.headers().firstValue("Range").get().substring("bytes=".length());
+      requestedRangeHeaders.add(range);
+      final String[] bounds = range.split("-");
+      final int length = Integer.parseInt(bounds[1]) - Integer.parseInt(bounds[0]) + 1;
+      final HttpResponse response = mock(HttpResponse.class);
+      when(response.statusCode()).thenReturn(206);
+      when(response.headers()).thenReturn(HttpHeaders.of(
+          Map.of("Content-Range", List.of("bytes " + range + "/*"), "Content-Length", List.of(String.valueOf(length))),
+          (s1, s2) -> true));
+      when(response.body()).thenReturn(new ByteArrayInputStream(new byte[length]));
+      return response;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> ranges = createSomeRanges(8);
+    final Set<ContentRange> received = ConcurrentHashMap.newKeySet();
+
+    ZsyncClient.newZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), ranges,
+        Collections.emptyMap(), (range, in) -> {
+          assertEquals(range.length(), in.readAllBytes().length);
+          received.add(range);
+        }, listener, 4, 1);
+
+    assertEquals(new HashSet<>(ranges), received);
+    assertEquals(8, requestedRangeHeaders.size());
+    verify(mockHttpClient, times(8)).send(any(HttpRequest.class), any());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoRangesPerRequest() throws Exception {
+    new ZsyncClient(mock(HttpClient.class)).partialGet(URI.create("http://host/file"), createSomeRanges(1),
+        Collections.emptyMap(), mock(RangeReceiver.class), mock(RangeTransferListener.class), 1, 0);
+  }
+
+  /**
+   * Tests that batches rejected by the server are split, and that the learned limit is reused for the same host
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAdaptiveRangesPerRequest() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final List<Integer> requestedBatchSizes = new ArrayList<>();
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenAnswer(invocation -> {
+      final HttpRequest request = invocation.getArgument(0);
+      final String[] ranges = request.headers().firstValue("Range").get().substring("bytes=".length()).split(",");
+      requestedBatchSizes.add(ranges.length);
+      final HttpResponse response = mock(HttpResponse.class);
+      if (ranges.length > 2) {
+        when(response.statusCode()).thenReturn(431);
+        return response;
+      }
+      final StringBuilder body = new StringBuilder();
+      for (String range : ranges) {
+        final String[] bounds = range.split("-");
+        final int length = Integer.parseInt(bounds[1]) - Integer.parseInt(bounds[0]) + 1;
+        body.append("\r\n--bnd\r\nContent-Range: bytes ").append(range).append("/*\r\n\r\n").append("x".repeat(length));
+      }
+      body.append("\r\n--bnd--\r\n");
+      when(response.statusCode()).thenReturn(206);
+      when(response.headers()).thenReturn(
+          HttpHeaders.of(Map.of("Content-Type", List.of("multipart/byteranges; boundary=bnd")), (s1, s2) -> true));
+      when(response.body()).thenReturn(new ByteArrayInputStream(body.toString().getBytes(ISO_8859_1)));
+      return response;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final ZsyncClient client = new ZsyncClient(mockHttpClient);
+    final Set<ContentRange> received = new HashSet<>();
+    final List<ContentRange> ranges = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      ranges.add(new ContentRange(i * 20, i * 20 + 9));
+    }
+
+    client.partialGet(URI.create("http://host/file"), ranges.subList(0, 8), Collections.emptyMap(),
+        (range, in) -> {
+          in.readAllBytes();
+          received.add(range);
+        }, listener);
+    assertEquals(new HashSet<>(ranges.subList(0, 8)), received);
+    assertEquals(List.of(8, 4, 2, 3, 1, 2, 2, 1), requestedBatchSizes);
+
+    requestedBatchSizes.clear();
+    client.partialGet(URI.create("http://host/other"), ranges.subList(8, 16), Collections.emptyMap(),
+        (range, in) -> {
+          in.readAllBytes();
+          received.add(range);
+        }, listener);
+    assertEquals(new HashSet<>(ranges), received);
+    assertEquals(List.of(2, 2, 2, 2), requestedBatchSizes);
+  }
+
+  /**
+   * Tests that a batch of a single range is not retried
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSingleRangeRejected() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final HttpResponse response = mock(HttpResponse.class);
+    when(response.statusCode()).thenReturn(416);
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenReturn(response);
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    try {
+      new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), createSomeRanges(1),
+          Collections.emptyMap(), mock(RangeReceiver.class), listener);
+      fail("expected exception not thrown");
+    } catch (ZsyncClient.HttpError e) {
+      assertEquals(416, e.getCode());
+    }
+    verify(mockHttpClient, times(1)).send(any(HttpRequest.class), any());
+  }
+
+  /**
+   * Tests that a range coalesced by the server satisfies all requested ranges it covers
+   */
+  @Test
+  public void testCoalescedRanges() throws Exception {
+    final HttpResponse response = mock(HttpResponse.class);
+    when(response.body()).thenReturn(new ByteArrayInputStream(new byte[30]));
+    when(response.headers()).thenReturn(
+        HttpHeaders.of(Map.of("Content-Range", List.of("bytes 0-29/100")), (s1, s2) -> true));
+    final Set<ContentRange> remaining =
+        new HashSet<>(List.of(new ContentRange(0, 9), new ContentRange(20, 29), new ContentRange(40, 49)));
+    final Map<ContentRange, Integer> received = new HashMap<>();
+
+    assertTrue(ZsyncClient.handleSinglePartBody(response, (range, in) -> received.put(range, in.readAllBytes().length),
+        remaining, mock(HttpTransferListener.class)));
+
+    assertEquals(Map.of(new ContentRange(0, 29), 30), received);
+    assertEquals(Set.of(new ContentRange(40, 49)), remaining);
+  }
+
+  /**
+   * Tests that a truncated multipart response is retried for the ranges not received yet
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRetryTruncatedBody() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final List<String> requestedRangeHeaders = new ArrayList<>();
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenAnswer(invocation -> {
+      final HttpRequest request = invocation.getArgument(0);
+      final String rangeHeader = request.headers().firstValue("Range").get();
+      requestedRangeHeaders.add(rangeHeader);
+      final StringBuilder body = new StringBuilder();
+      for (String range : rangeHeader.substring("bytes=".length()).split(",")) {
+        body.append("\r\n--bnd\r\nContent-Range: bytes ").append(range).append("/*\r\n\r\n").append("x".repeat(10));
+      }
+      body.append("\r\n--bnd--\r\n");
+      // cut the first response short in the middle of the second part
+      final String content = requestedRangeHeaders.size() == 1 ? body.substring(0, 93) : body.toString();
+      final HttpResponse response = mock(HttpResponse.class);
+      when(response.statusCode()).thenReturn(206);
+      when(response.headers()).thenReturn(
+          HttpHeaders.of(Map.of("Content-Type", List.of("multipart/byteranges; boundary=bnd")), (s1, s2) -> true));
+      when(response.body()).thenReturn(new ByteArrayInputStream(content.getBytes(ISO_8859_1)));
+      return response;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> received = new ArrayList<>();
+
+    new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), createSomeRanges(3),
+        Collections.emptyMap(), (range, in) -> {
+          if (in.readAllBytes().length != range.length()) {
+            throw new IOException("Premature end of stream");
+          }
+          received.add(range);
+        }, listener, 1, 100, 1);
+
+    assertEquals(createSomeRanges(3), received);
+    assertEquals(List.of("bytes=0-9,10-19,20-29", "bytes=10-19,20-29"), requestedRangeHeaders);
+  }
+
+  /**
+   * Tests that the error is propagated once the retries are used up
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenThrow(new IOException("Connection reset"));
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    final HttpTransferListener requestListener = mock(HttpTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(requestListener);
+    try {
+      new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), createSomeRanges(2),
+          Collections.emptyMap(), mock(RangeReceiver.class), listener, 1, 100, 1);
+      fail("expected exception not thrown");
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+    verify(mockHttpClient, times(2)).send(any(HttpRequest.class), any());
+    verify(requestListener, times(2)).close();
+  }
+
+  /**
+   * Tests that a full response without Content-Length header, e.g. a chunked one, is handed to the receiver with the
+   * length the receiver expects
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFullResponseWithoutContentLength() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final HttpResponse full = mock(HttpResponse.class);
+    when(full.statusCode()).thenReturn(200);
+    when(full.headers()).thenReturn(HttpHeaders.of(Map.of(), (s1, s2) -> true));
+    when(full.body()).thenReturn(new ByteArrayInputStream(new byte[42]));
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenReturn(full);
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final RangeReceiver receiver = mock(RangeReceiver.class);
+    when(receiver.getLength()).thenReturn(42L);
+
+    new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), createSomeRanges(1),
+        Collections.emptyMap(), receiver, listener);
+
+    verify(receiver).receive(eq(new ContentRange(0, 41)), any(InputStream.class));
+  }
+
+  /**
+   * Tests that server errors are retried
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRetryServerError() throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    final HttpResponse unavailable = mock(HttpResponse.class);
+    when(unavailable.statusCode()).thenReturn(503);
+    final HttpResponse partial = mock(HttpResponse.class);
+    when(partial.statusCode()).thenReturn(206);
+    when(partial.headers()).thenReturn(HttpHeaders.of(
+        Map.of("Content-Range", List.of("bytes 0-9/*"), "Content-Length", List.of("10")), (s1, s2) -> true));
+    when(partial.body()).thenReturn(new ByteArrayInputStream(new byte[10]));
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenReturn(unavailable, partial);
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final RangeReceiver receiver = mock(RangeReceiver.class);
+
+    new ZsyncClient(mockHttpClient).partialGet(URI.create("http://host/file"), createSomeRanges(1),
+        Collections.emptyMap(), receiver, listener, 1, 100, 3);
+
+    verify(receiver).receive(eq(new ContentRange(0, 9)), any(InputStream.class));
+    verify(mockHttpClient, times(2)).send(any(HttpRequest.class), any());
+  }
+
+  /**
+   * Tests that ranges are fetched from all mirrors
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testMirrors() throws Exception {
+    final Map<String, Integer> requestsByHost = new ConcurrentHashMap<>();
+    final HttpClient mockHttpClient = singleRangeServer(host -> {
+      requestsByHost.merge(host, 1, Integer::sum);
+      Thread.sleep(5);
+      return true;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> ranges = createSomeRanges(40);
+    final Set<ContentRange> received = ConcurrentHashMap.newKeySet();
+
+    new ZsyncClient(mockHttpClient).partialGet(List.of(URI.create("http://a/file"), URI.create("http://b/file")),
+        ranges, Collections.emptyMap(), (range, in) -> {
+          assertEquals(range.length(), in.readAllBytes().length);
+          received.add(range);
+        }, listener, 2, 1, 0);
+
+    assertEquals(new HashSet<>(ranges), received);
+    assertEquals(Set.of("a", "b"), requestsByHost.keySet());
+    assertEquals(40, requestsByHost.values().stream().mapToInt(Integer::intValue).sum());
+  }
+
+  /**
+   * Tests that the ranges of a failed mirror are fetched from the remaining mirror
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFailedMirror() throws Exception {
+    final HttpClient mockHttpClient = singleRangeServer(host -> !"a".equals(host));
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> ranges = createSomeRanges(10);
+    final Set<ContentRange> received = ConcurrentHashMap.newKeySet();
+
+    new ZsyncClient(mockHttpClient).partialGet(List.of(URI.create("http://a/file"), URI.create("http://b/file")),
+        ranges, Collections.emptyMap(), (range, in) -> {
+          in.readAllBytes();
+          received.add(range);
+        }, listener, 2, 1, 0);
+
+    assertEquals(new HashSet<>(ranges), received);
+  }
+
+  /**
+   * Tests that the error is propagated if all mirrors fail
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllMirrorsFailed() throws Exception {
+    final HttpClient mockHttpClient = singleRangeServer(host -> false);
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    try {
+      new ZsyncClient(mockHttpClient).partialGet(List.of(URI.create("http://a/file"), URI.create("http://b/file")),
+          createSomeRanges(10), Collections.emptyMap(), mock(RangeReceiver.class), listener, 2, 1, 0);
+      fail("expected exception not thrown");
+    } catch (IOException e) {
+      assertEquals("Connection refused", e.getMessage());
+    }
+  }
+
+  /**
+   * Tests that a failed mirror is dropped without using up the retries of the remaining mirror
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testFailedMirrorKeepsRetries() throws Exception {
+    final AtomicInteger requestsToFailed = new AtomicInteger();
+    final HttpClient mockHttpClient = singleRangeServer(host -> {
+      if ("a".equals(host)) {
+        requestsToFailed.incrementAndGet();
+        return false;
+      }
+      return true;
+    });
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final List<ContentRange> ranges = createSomeRanges(10);
+    final Set<ContentRange> received = ConcurrentHashMap.newKeySet();
+    final AtomicInteger retriesLeft = new AtomicInteger(3);
+
+    new ZsyncClient(mockHttpClient).partialGet(List.of(URI.create("http://a/file"), URI.create("http://b/file")),
+        ranges, Collections.emptyMap(), (range, in) -> {
+          in.readAllBytes();
+          received.add(range);
+        }, listener, 2, 1, retriesLeft);
+
+    assertEquals(new HashSet<>(ranges), received);
+    assertEquals(3, retriesLeft.get());
+    assertTrue(requestsToFailed.get() <= 2);
+  }
+
+  /**
+   * Tests that an error of the receiver is propagated at once rather than retried or blamed on the
+   * mirror
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testReceiverFailed() throws Exception {
+    final HttpClient mockHttpClient = singleRangeServer(host -> true);
+    final RangeTransferListener listener = mock(RangeTransferListener.class);
+    when(listener.newTransfer(any(List.class))).thenReturn(mock(HttpTransferListener.class));
+    final AtomicInteger received = new AtomicInteger();
+    final RangeReceiver receiver = (range, in) -> {
+      received.incrementAndGet();
+      throw new IOException("Disk full");
+    };
+    final List<URI> uris = List.of(URI.create("http://a/file"), URI.create("http://b/file"));
+
+    for (List<URI> mirrors : List.of(uris, uris.subList(0, 1))) {
+      received.set(0);
+      try {
+        new ZsyncClient(mockHttpClient).partialGet(mirrors, createSomeRanges(1), Collections.emptyMap(), receiver,
+            listener, 2, 1, new AtomicInteger(3));
+        fail("expected exception not thrown");
+      } catch (IOException e) {
+        assertEquals(IOException.class, e.getClass());
+        assertEquals("Disk full", e.getMessage());
+      }
+      assertEquals(1, received.get());
+    }
+  }
+
+  private interface HostFilter {
+    boolean available(String host) throws Exception;
+  }
+
+  /**
+   * Returns a client that answers requests for a single range with a single part response, or fails
+   * if the host is not available
+   */
+  private static HttpClient singleRangeServer(HostFilter filter) throws Exception {
+    final HttpClient mockHttpClient = mock(HttpClient.class);
+    when(mockHttpClient.send(any(HttpRequest.class), any())).thenAnswer(invocation -> {
+      final HttpRequest request = invocation.getArgument(0);
+      if (!filter.available(request.uri().getHost())) {
+        throw new IOException("Connection refused");
+      }
+      final String range = request.headers().firstValue("Range").get().substring("bytes=".length());
+      final String[] bounds = range.split("-");
+      final int length = Integer.parseInt(bounds[1]) - Integer.parseInt(bounds[0]) + 1;
+      final HttpResponse response = mock(HttpResponse.class);
+      when(response.statusCode()).thenReturn(206);
+      when(response.headers()).thenReturn(HttpHeaders.of(
+          Map.of("Content-Range", List.of("bytes " + range + "/*"), "Content-Length", List.of(String.valueOf(length))),
+          (s1, s2) -> true));
+      when(response.body()).thenReturn(new ByteArrayInputStream(new byte[length]));
+      return response;
+    });
+    return mockHttpClient;
+  }
+
+  @Test
+  public void testRetryBackoff() {
+    assertEquals(INITIAL_RETRY_BACKOFF_MILLIS, ZsyncClient.retryBackoffMillis(1));
+    assertEquals(2 * INITIAL_RETRY_BACKOFF_MILLIS, ZsyncClient.retryBackoffMillis(2));
+    assertEquals(MAXIMUM_RETRY_BACKOFF_MILLIS, ZsyncClient.retryBackoffMillis(100));
+  }
+
+  @Test
+  public void testRangeLimit() {
+    final ZsyncClient.RangeLimit limit = new ZsyncClient.RangeLimit();
+    assertEquals(ZsyncClient.INITIAL_RANGES_PER_HTTP_REQUEST, limit.get());
+    limit.accepted(ZsyncClient.INITIAL_RANGES_PER_HTTP_REQUEST);
+    assertEquals(2 * ZsyncClient.INITIAL_RANGES_PER_HTTP_REQUEST, limit.get());
+    for (int i = 0; i < 10; i++) {
+      limit.accepted(limit.get());
+    }
+    // bounded by the number of the shortest ranges that fit into the Range header
+    assertEquals(ZsyncClient.MAXIMUM_RANGE_HEADER_LENGTH / 4, limit.get());
+    limit.rejected(40);
+    assertEquals(20, limit.get());
+    limit.accepted(10);
+    assertEquals(20, limit.get());
+    limit.accepted(20);
+    assertEquals(39, limit.get());
+    limit.rejected(1);
+    assertEquals(1, limit.get());
+  }
+
+  @Test
+  public void testNextBatchHeaderBudget() {
+    final Set<ContentRange> remaining = new LinkedHashSet<>();
+    for (long i = 0; i < 1000; i++) {
+      remaining.add(new ContentRange(1_000_000_000L + i * 100, 1_000_000_000L + i * 100 + 9));
+    }
+    final List<ContentRange> batch = ZsyncClient.nextBatch(remaining, 1000);
+    final int headerLength = ("bytes=" + batch.stream().map(ContentRange::toString).collect(Collectors.joining(","))).length();
+    assertTrue(headerLength <= ZsyncClient.MAXIMUM_RANGE_HEADER_LENGTH);
+    assertTrue(headerLength + 22 > ZsyncClient.MAXIMUM_RANGE_HEADER_LENGTH);
+    assertEquals(10, ZsyncClient.nextBatch(remaining, 10).size());
+  }
+
   private List<ContentRange> createSomeRanges(int numberOfRangesToCreate) {
     List<ContentRange> ranges = new ArrayList<>(numberOfRangesToCreate);
     int rangeStart = 0;